@@ -1,34 +1,165 @@
 CREATE TABLE Caregivers (
-    Username varchar(255),
+    ID int IDENTITY(1,1),
+    Username varchar(255) NOT NULL UNIQUE,
     Salt BINARY(16),
     Hash BINARY(16),
-    PRIMARY KEY (Username)
+    PRIMARY KEY (ID)
 );
 
 CREATE TABLE Availabilities (
+    Site varchar(64) NOT NULL DEFAULT 'default',
     Time date,
-    Username varchar(255) REFERENCES Caregivers,
-    PRIMARY KEY (Time, Username)
+    CaregiverID int REFERENCES Caregivers (ID),
+    PRIMARY KEY (Site, Time, CaregiverID)
 );
 
 CREATE TABLE Vaccines (
-    Name varchar(255),
+    ID int IDENTITY(1,1),
+    Site varchar(64) NOT NULL DEFAULT 'default',
+    Name varchar(255) NOT NULL,
     Doses int,
-    PRIMARY KEY (Name)
+    PRIMARY KEY (ID),
+    UNIQUE (Site, Name)
+);
+
+-- the doses of a vaccine by delivered lot; Vaccines.Doses is the total of the unexpired ones
+CREATE TABLE VaccineLots (
+    ID int IDENTITY(1,1),
+    VaccineID int NOT NULL REFERENCES Vaccines (ID),
+    Lot varchar(64) NOT NULL,
+    Expiry date NOT NULL,
+    Doses int NOT NULL,
+    PRIMARY KEY (ID),
+    UNIQUE (VaccineID, Lot)
 );
 
 CREATE TABLE Patients (
-    Username varchar(255),
+    ID int IDENTITY(1,1),
+    Username varchar(255) NOT NULL UNIQUE,
     Salt BINARY(16),
     Hash BINARY(16),
-    PRIMARY KEY (Username)
+    PRIMARY KEY (ID)
 );
 
 CREATE TABLE Reservations (
     ID int IDENTITY(1,1),
+    Site varchar(64) NOT NULL DEFAULT 'default',
+    Time date NOT NULL,
+    CaregiverID int NOT NULL REFERENCES Caregivers (ID),
+    VaccineID int REFERENCES Vaccines (ID),
+    PatientID int REFERENCES Patients (ID),
+    RequestKey varchar(64),
+    LotID int REFERENCES VaccineLots (ID),
+    -- commit-safe export watermark, see ReservationExporter
+    Version rowversion,
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX IX_Reservations_Caregiver ON Reservations (CaregiverID, Time);
+CREATE INDEX IX_Reservations_Patient ON Reservations (PatientID);
+
+-- a caregiver gives one appointment per date; dates from rules have no availability row to lock
+CREATE UNIQUE INDEX UX_Reservations_CaregiverDay ON Reservations (Site, Time, CaregiverID);
+
+-- a request key books at most one appointment per patient, so a retried reserve finds the first one
+CREATE UNIQUE INDEX UX_Reservations_RequestKey ON Reservations (Site, PatientID, RequestKey)
+    WHERE RequestKey IS NOT NULL;
+
+-- incremental exports read the reservations of a site written since the last exported version
+CREATE INDEX IX_Reservations_Version ON Reservations (Site, Version)
+    INCLUDE (Time, CaregiverID, VaccineID, PatientID);
+
+-- cancellations made with a request key, so a retried cancel reports the first outcome
+CREATE TABLE Cancellations (
+    Site varchar(64) NOT NULL DEFAULT 'default',
+    RequestKey varchar(64) NOT NULL,
+    AppointmentID int NOT NULL,
+    CancelledAt datetime2 NOT NULL DEFAULT SYSUTCDATETIME(),
+    PRIMARY KEY (Site, RequestKey)
+);
+
+-- vaccines given as a series of doses, each MinIntervalDays to MaxIntervalDays after the previous one
+CREATE TABLE VaccineSeries (
+    VaccineID int REFERENCES Vaccines (ID),
+    DoseCount int NOT NULL,
+    MinIntervalDays int NOT NULL,
+    MaxIntervalDays int NOT NULL,
+    PRIMARY KEY (VaccineID)
+);
+
+-- weekly availability: the caregiver is available on the Weekdays (bit 0 Monday ... bit 6 Sunday)
+-- from FirstDate to LastDate; the dates are never written out, searches expand the rules
+CREATE TABLE AvailabilityRules (
+    ID int IDENTITY(1,1),
+    Site varchar(64) NOT NULL DEFAULT 'default',
+    CaregiverID int NOT NULL REFERENCES Caregivers (ID),
+    FirstDate date NOT NULL,
+    LastDate date NOT NULL,
+    Weekdays tinyint NOT NULL,
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX IX_AvailabilityRules_Site ON AvailabilityRules (Site, FirstDate, LastDate);
+
+-- dates taken out of a caregiver's rules
+CREATE TABLE AvailabilityExceptions (
+    Site varchar(64) NOT NULL DEFAULT 'default',
+    Time date NOT NULL,
+    CaregiverID int NOT NULL REFERENCES Caregivers (ID),
+    PRIMARY KEY (Site, Time, CaregiverID)
+);
+
+-- slots patients are deciding on; every session skips the caregivers and doses held by other patients
+-- until ExpiresAt (database clock) passes. One hold per patient and site, one per caregiver and date.
+-- Holds are short-lived and replaced freely, so they have no foreign keys.
+CREATE TABLE Holds (
+    Site varchar(64) NOT NULL,
+    PatientID int NOT NULL,
+    Time date NOT NULL,
+    CaregiverID int NOT NULL,
+    VaccineID int NOT NULL,
+    RequestKey varchar(64) NOT NULL,
+    ExpiresAt datetime2 NOT NULL,
+    PRIMARY KEY (Site, PatientID)
+);
+
+CREATE UNIQUE INDEX UX_Holds_CaregiverDay ON Holds (Site, Time, CaregiverID);
+CREATE INDEX IX_Holds_Vaccine ON Holds (Site, VaccineID);
+
+-- session tokens issued by login, so a client can resume in any process until logout or expiry;
+-- only the SHA-256 of a token is stored
+CREATE TABLE Sessions (
+    TokenHash binary(32) NOT NULL,
+    Role varchar(16) NOT NULL,
+    UserID int NOT NULL,
+    ExpiresAt datetime2 NOT NULL,
+    PRIMARY KEY (TokenHash)
+);
+
+CREATE INDEX IX_Sessions_ExpiresAt ON Sessions (ExpiresAt);
+
+-- wrong passwords per account, counted across every process; an account is locked out once
+-- MaxFailedLogins failures fall within FailedLoginWindowSeconds of WindowStart
+CREATE TABLE LoginFailures (
+    Role varchar(16) NOT NULL,
+    Username varchar(255) NOT NULL,
+    WindowStart datetime2 NOT NULL,
+    Failures int NOT NULL,
+    PRIMARY KEY (Role, Username)
+);
+
+CREATE INDEX IX_LoginFailures_WindowStart ON LoginFailures (WindowStart);
+
+-- bookings and cancellations waiting for the reminder process, written by the statement that makes them
+-- and deleted once the process has read them. A site whose reminder process is not running keeps its events
+-- until one starts.
+CREATE TABLE ReminderEvents (
+    ID bigint IDENTITY(1,1),
+    Site varchar(64) NOT NULL,
+    AppointmentID int NOT NULL,
     Time date NOT NULL,
-    CaregiverName varchar(255) NOT NULL,
-    VaccineName varchar(255) REFERENCES Vaccines (Name),
-    PatientName varchar(255) REFERENCES Patients (Username) ,
+    Cancelled bit NOT NULL,
     PRIMARY KEY (ID)
-);
\ No newline at end of file
+);
+
+CREATE INDEX IX_ReminderEvents_Site ON ReminderEvents (Site, ID);
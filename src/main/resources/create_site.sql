@@ -0,0 +1,128 @@
+-- Schema for the database of a site shard (SiteUrl_<site>).
+-- Accounts stay in the default database, so CaregiverID and PatientID refer to rows there
+-- and cannot be declared as foreign keys here.
+CREATE TABLE Availabilities (
+    Site varchar(64) NOT NULL,
+    Time date,
+    CaregiverID int NOT NULL,
+    PRIMARY KEY (Site, Time, CaregiverID)
+);
+
+CREATE TABLE Vaccines (
+    ID int IDENTITY(1,1),
+    Site varchar(64) NOT NULL,
+    Name varchar(255) NOT NULL,
+    Doses int,
+    PRIMARY KEY (ID),
+    UNIQUE (Site, Name)
+);
+
+-- the doses of a vaccine by delivered lot; Vaccines.Doses is the total of the unexpired ones
+CREATE TABLE VaccineLots (
+    ID int IDENTITY(1,1),
+    VaccineID int NOT NULL REFERENCES Vaccines (ID),
+    Lot varchar(64) NOT NULL,
+    Expiry date NOT NULL,
+    Doses int NOT NULL,
+    PRIMARY KEY (ID),
+    UNIQUE (VaccineID, Lot)
+);
+
+CREATE TABLE Reservations (
+    ID int IDENTITY(1,1),
+    Site varchar(64) NOT NULL,
+    Time date NOT NULL,
+    CaregiverID int NOT NULL,
+    VaccineID int REFERENCES Vaccines (ID),
+    PatientID int NOT NULL,
+    RequestKey varchar(64),
+    LotID int REFERENCES VaccineLots (ID),
+    -- commit-safe export watermark, see ReservationExporter
+    Version rowversion,
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX IX_Reservations_Caregiver ON Reservations (CaregiverID, Time);
+CREATE INDEX IX_Reservations_Patient ON Reservations (PatientID);
+
+-- a caregiver gives one appointment per date; dates from rules have no availability row to lock
+CREATE UNIQUE INDEX UX_Reservations_CaregiverDay ON Reservations (Site, Time, CaregiverID);
+
+-- a request key books at most one appointment per patient, so a retried reserve finds the first one
+CREATE UNIQUE INDEX UX_Reservations_RequestKey ON Reservations (Site, PatientID, RequestKey)
+    WHERE RequestKey IS NOT NULL;
+
+-- incremental exports read the reservations of a site written since the last exported version
+CREATE INDEX IX_Reservations_Version ON Reservations (Site, Version)
+    INCLUDE (Time, CaregiverID, VaccineID, PatientID);
+
+-- cancellations made with a request key, so a retried cancel reports the first outcome
+CREATE TABLE Cancellations (
+    Site varchar(64) NOT NULL,
+    RequestKey varchar(64) NOT NULL,
+    AppointmentID int NOT NULL,
+    CancelledAt datetime2 NOT NULL DEFAULT SYSUTCDATETIME(),
+    PRIMARY KEY (Site, RequestKey)
+);
+
+-- vaccines given as a series of doses, each MinIntervalDays to MaxIntervalDays after the previous one
+CREATE TABLE VaccineSeries (
+    VaccineID int REFERENCES Vaccines (ID),
+    DoseCount int NOT NULL,
+    MinIntervalDays int NOT NULL,
+    MaxIntervalDays int NOT NULL,
+    PRIMARY KEY (VaccineID)
+);
+
+-- weekly availability: the caregiver is available on the Weekdays (bit 0 Monday ... bit 6 Sunday)
+-- from FirstDate to LastDate; the dates are never written out, searches expand the rules
+CREATE TABLE AvailabilityRules (
+    ID int IDENTITY(1,1),
+    Site varchar(64) NOT NULL,
+    CaregiverID int NOT NULL,
+    FirstDate date NOT NULL,
+    LastDate date NOT NULL,
+    Weekdays tinyint NOT NULL,
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX IX_AvailabilityRules_Site ON AvailabilityRules (Site, FirstDate, LastDate);
+
+-- dates taken out of a caregiver's rules
+CREATE TABLE AvailabilityExceptions (
+    Site varchar(64) NOT NULL,
+    Time date NOT NULL,
+    CaregiverID int NOT NULL,
+    PRIMARY KEY (Site, Time, CaregiverID)
+);
+
+-- slots patients are deciding on; every session skips the caregivers and doses held by other patients
+-- until ExpiresAt (database clock) passes. One hold per patient and site, one per caregiver and date.
+-- Holds are short-lived and replaced freely, so they have no foreign keys.
+CREATE TABLE Holds (
+    Site varchar(64) NOT NULL,
+    PatientID int NOT NULL,
+    Time date NOT NULL,
+    CaregiverID int NOT NULL,
+    VaccineID int NOT NULL,
+    RequestKey varchar(64) NOT NULL,
+    ExpiresAt datetime2 NOT NULL,
+    PRIMARY KEY (Site, PatientID)
+);
+
+CREATE UNIQUE INDEX UX_Holds_CaregiverDay ON Holds (Site, Time, CaregiverID);
+CREATE INDEX IX_Holds_Vaccine ON Holds (Site, VaccineID);
+
+-- bookings and cancellations waiting for the reminder process, written by the statement that makes them
+-- and deleted once the process has read them. A site whose reminder process is not running keeps its events
+-- until one starts.
+CREATE TABLE ReminderEvents (
+    ID bigint IDENTITY(1,1),
+    Site varchar(64) NOT NULL,
+    AppointmentID int NOT NULL,
+    Time date NOT NULL,
+    Cancelled bit NOT NULL,
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX IX_ReminderEvents_Site ON ReminderEvents (Site, ID);
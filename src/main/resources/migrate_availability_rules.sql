@@ -0,0 +1,27 @@
+-- Adds recurring availability to a database migrated with migrate_vaccine_lots.sql.
+-- Run it against every shard database as well; in a shard CaregiverID has no foreign key.
+-- The unique index fails if a caregiver already has two appointments on one date.
+BEGIN TRANSACTION;
+
+CREATE TABLE AvailabilityRules (
+    ID int IDENTITY(1,1),
+    Site varchar(64) NOT NULL DEFAULT 'default',
+    CaregiverID int NOT NULL,
+    FirstDate date NOT NULL,
+    LastDate date NOT NULL,
+    Weekdays tinyint NOT NULL,
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX IX_AvailabilityRules_Site ON AvailabilityRules (Site, FirstDate, LastDate);
+
+CREATE TABLE AvailabilityExceptions (
+    Site varchar(64) NOT NULL DEFAULT 'default',
+    Time date NOT NULL,
+    CaregiverID int NOT NULL,
+    PRIMARY KEY (Site, Time, CaregiverID)
+);
+
+CREATE UNIQUE INDEX UX_Reservations_CaregiverDay ON Reservations (Site, Time, CaregiverID);
+
+COMMIT;
@@ -0,0 +1,11 @@
+-- Adds row versions for incremental exports to a database migrated with migrate_availability_rules.sql.
+-- Run it against every shard database as well.
+BEGIN TRANSACTION;
+
+ALTER TABLE Reservations ADD Version rowversion;
+
+-- the column is new to this batch, so the statement is compiled on its own
+EXEC ('CREATE INDEX IX_Reservations_Version ON Reservations (Site, Version) ' +
+      'INCLUDE (Time, CaregiverID, VaccineID, PatientID)');
+
+COMMIT;
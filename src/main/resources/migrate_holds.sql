@@ -0,0 +1,22 @@
+-- Adds shared holds to a database migrated with migrate_export_versions.sql.
+-- Run it against every shard database as well.
+BEGIN TRANSACTION;
+
+-- slots patients are deciding on; every session skips the caregivers and doses held by other patients
+-- until ExpiresAt (database clock) passes. One hold per patient and site, one per caregiver and date.
+-- Holds are short-lived and replaced freely, so they have no foreign keys.
+CREATE TABLE Holds (
+    Site varchar(64) NOT NULL,
+    PatientID int NOT NULL,
+    Time date NOT NULL,
+    CaregiverID int NOT NULL,
+    VaccineID int NOT NULL,
+    RequestKey varchar(64) NOT NULL,
+    ExpiresAt datetime2 NOT NULL,
+    PRIMARY KEY (Site, PatientID)
+);
+
+CREATE UNIQUE INDEX UX_Holds_CaregiverDay ON Holds (Site, Time, CaregiverID);
+CREATE INDEX IX_Holds_Vaccine ON Holds (Site, VaccineID);
+
+COMMIT;
@@ -0,0 +1,17 @@
+-- Adds failed login counters to a database migrated with migrate_sessions.sql.
+-- Only the default database needs it, the accounts live there.
+BEGIN TRANSACTION;
+
+-- wrong passwords per account, counted across every process; an account is locked out once
+-- MaxFailedLogins failures fall within FailedLoginWindowSeconds of WindowStart
+CREATE TABLE LoginFailures (
+    Role varchar(16) NOT NULL,
+    Username varchar(255) NOT NULL,
+    WindowStart datetime2 NOT NULL,
+    Failures int NOT NULL,
+    PRIMARY KEY (Role, Username)
+);
+
+CREATE INDEX IX_LoginFailures_WindowStart ON LoginFailures (WindowStart);
+
+COMMIT;
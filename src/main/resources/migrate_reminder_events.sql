@@ -0,0 +1,19 @@
+-- Adds the reminder event outbox to a database migrated with migrate_login_failures.sql.
+-- Run it against every shard database as well.
+BEGIN TRANSACTION;
+
+-- bookings and cancellations waiting for the reminder process, written by the statement that makes them
+-- and deleted once the process has read them. A site whose reminder process is not running keeps its events
+-- until one starts.
+CREATE TABLE ReminderEvents (
+    ID bigint IDENTITY(1,1),
+    Site varchar(64) NOT NULL,
+    AppointmentID int NOT NULL,
+    Time date NOT NULL,
+    Cancelled bit NOT NULL,
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX IX_ReminderEvents_Site ON ReminderEvents (Site, ID);
+
+COMMIT;
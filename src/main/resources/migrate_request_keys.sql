@@ -0,0 +1,18 @@
+-- Adds request keys for idempotent reserve and cancel to a database migrated with migrate_sites.sql.
+-- Run it against every shard database as well.
+BEGIN TRANSACTION;
+
+ALTER TABLE Reservations ADD RequestKey varchar(64);
+
+CREATE UNIQUE INDEX UX_Reservations_RequestKey ON Reservations (Site, PatientID, RequestKey)
+    WHERE RequestKey IS NOT NULL;
+
+CREATE TABLE Cancellations (
+    Site varchar(64) NOT NULL DEFAULT 'default',
+    RequestKey varchar(64) NOT NULL,
+    AppointmentID int NOT NULL,
+    CancelledAt datetime2 NOT NULL DEFAULT SYSUTCDATETIME(),
+    PRIMARY KEY (Site, RequestKey)
+);
+
+COMMIT;
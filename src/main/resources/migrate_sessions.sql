@@ -0,0 +1,17 @@
+-- Adds shared session tokens to a database migrated with migrate_holds.sql.
+-- Only the default database needs it, the accounts live there.
+BEGIN TRANSACTION;
+
+-- session tokens issued by login, so a client can resume in any process until logout or expiry;
+-- only the SHA-256 of a token is stored
+CREATE TABLE Sessions (
+    TokenHash binary(32) NOT NULL,
+    Role varchar(16) NOT NULL,
+    UserID int NOT NULL,
+    ExpiresAt datetime2 NOT NULL,
+    PRIMARY KEY (TokenHash)
+);
+
+CREATE INDEX IX_Sessions_ExpiresAt ON Sessions (ExpiresAt);
+
+COMMIT;
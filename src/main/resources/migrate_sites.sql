@@ -0,0 +1,21 @@
+-- Adds the Site column to a database migrated with migrate_surrogate_keys.sql.
+-- Existing rows belong to the 'default' site.
+BEGIN TRANSACTION;
+
+DECLARE @constraint sysname;
+
+ALTER TABLE Availabilities ADD Site varchar(64) NOT NULL DEFAULT 'default';
+SELECT @constraint = name FROM sys.key_constraints
+    WHERE parent_object_id = OBJECT_ID('Availabilities') AND type = 'PK';
+EXEC ('ALTER TABLE Availabilities DROP CONSTRAINT ' + @constraint);
+ALTER TABLE Availabilities ADD PRIMARY KEY (Site, Time, CaregiverID);
+
+ALTER TABLE Vaccines ADD Site varchar(64) NOT NULL DEFAULT 'default';
+SELECT @constraint = name FROM sys.key_constraints
+    WHERE parent_object_id = OBJECT_ID('Vaccines') AND type = 'UQ';
+EXEC ('ALTER TABLE Vaccines DROP CONSTRAINT ' + @constraint);
+ALTER TABLE Vaccines ADD UNIQUE (Site, Name);
+
+ALTER TABLE Reservations ADD Site varchar(64) NOT NULL DEFAULT 'default';
+
+COMMIT;
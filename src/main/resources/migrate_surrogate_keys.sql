@@ -0,0 +1,73 @@
+-- Moves a database created with the original create.sql (names as keys) to integer surrogate keys.
+-- Every table is rebuilt under a temporary name, filled from the old one and renamed,
+-- so the whole migration either applies completely or not at all.
+BEGIN TRANSACTION;
+
+CREATE TABLE Caregivers_new (
+    ID int IDENTITY(1,1),
+    Username varchar(255) NOT NULL UNIQUE,
+    Salt BINARY(16),
+    Hash BINARY(16),
+    PRIMARY KEY (ID)
+);
+INSERT INTO Caregivers_new (Username, Salt, Hash) SELECT Username, Salt, Hash FROM Caregivers;
+
+CREATE TABLE Patients_new (
+    ID int IDENTITY(1,1),
+    Username varchar(255) NOT NULL UNIQUE,
+    Salt BINARY(16),
+    Hash BINARY(16),
+    PRIMARY KEY (ID)
+);
+INSERT INTO Patients_new (Username, Salt, Hash) SELECT Username, Salt, Hash FROM Patients;
+
+CREATE TABLE Vaccines_new (
+    ID int IDENTITY(1,1),
+    Name varchar(255) NOT NULL UNIQUE,
+    Doses int,
+    PRIMARY KEY (ID)
+);
+INSERT INTO Vaccines_new (Name, Doses) SELECT Name, Doses FROM Vaccines;
+
+CREATE TABLE Availabilities_new (
+    Time date,
+    CaregiverID int REFERENCES Caregivers_new (ID),
+    PRIMARY KEY (Time, CaregiverID)
+);
+INSERT INTO Availabilities_new (Time, CaregiverID)
+    SELECT a.Time, c.ID FROM Availabilities a JOIN Caregivers_new c ON c.Username = a.Username;
+
+CREATE TABLE Reservations_new (
+    ID int IDENTITY(1,1),
+    Time date NOT NULL,
+    CaregiverID int NOT NULL REFERENCES Caregivers_new (ID),
+    VaccineID int REFERENCES Vaccines_new (ID),
+    PatientID int REFERENCES Patients_new (ID),
+    PRIMARY KEY (ID)
+);
+-- appointment IDs that patients already hold must not change
+SET IDENTITY_INSERT Reservations_new ON;
+INSERT INTO Reservations_new (ID, Time, CaregiverID, VaccineID, PatientID)
+    SELECT r.ID, r.Time, c.ID, v.ID, p.ID
+    FROM Reservations r
+    JOIN Caregivers_new c ON c.Username = r.CaregiverName
+    LEFT JOIN Vaccines_new v ON v.Name = r.VaccineName
+    LEFT JOIN Patients_new p ON p.Username = r.PatientName;
+SET IDENTITY_INSERT Reservations_new OFF;
+
+DROP TABLE Reservations;
+DROP TABLE Availabilities;
+DROP TABLE Vaccines;
+DROP TABLE Patients;
+DROP TABLE Caregivers;
+
+EXEC sp_rename 'Caregivers_new', 'Caregivers';
+EXEC sp_rename 'Patients_new', 'Patients';
+EXEC sp_rename 'Vaccines_new', 'Vaccines';
+EXEC sp_rename 'Availabilities_new', 'Availabilities';
+EXEC sp_rename 'Reservations_new', 'Reservations';
+
+CREATE INDEX IX_Reservations_Caregiver ON Reservations (CaregiverID, Time);
+CREATE INDEX IX_Reservations_Patient ON Reservations (PatientID);
+
+COMMIT;
@@ -0,0 +1,25 @@
+-- Adds vaccine lots to a database migrated with migrate_vaccine_series.sql.
+-- Run it against every shard database as well.
+BEGIN TRANSACTION;
+
+CREATE TABLE VaccineLots (
+    ID int IDENTITY(1,1),
+    VaccineID int NOT NULL REFERENCES Vaccines (ID),
+    Lot varchar(64) NOT NULL,
+    Expiry date NOT NULL,
+    Doses int NOT NULL,
+    PRIMARY KEY (ID),
+    UNIQUE (VaccineID, Lot)
+);
+
+ALTER TABLE Reservations ADD LotID int REFERENCES VaccineLots (ID);
+
+-- the stock delivered before lots were tracked becomes one lot per vaccine that never expires
+INSERT INTO VaccineLots (VaccineID, Lot, Expiry, Doses)
+SELECT ID, 'unknown', '9999-12-31', ISNULL(Doses, 0) FROM Vaccines;
+
+-- the column is new to this batch, so the statement is compiled on its own
+EXEC ('UPDATE r SET LotID = l.ID FROM Reservations r ' +
+      'JOIN VaccineLots l ON l.VaccineID = r.VaccineID AND l.Lot = ''unknown''');
+
+COMMIT;
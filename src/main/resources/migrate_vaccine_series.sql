@@ -0,0 +1,9 @@
+-- Adds vaccine series definitions to a database migrated with migrate_request_keys.sql.
+-- Run it against every shard database as well.
+CREATE TABLE VaccineSeries (
+    VaccineID int REFERENCES Vaccines (ID),
+    DoseCount int NOT NULL,
+    MinIntervalDays int NOT NULL,
+    MaxIntervalDays int NOT NULL,
+    PRIMARY KEY (VaccineID)
+);
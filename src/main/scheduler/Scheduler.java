@@ -1,19 +1,52 @@
 package scheduler;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.FailedLogins;
+import scheduler.db.NameTable;
+import scheduler.db.Retry;
+import scheduler.db.SessionStore;
+import scheduler.db.StatementLog;
+import scheduler.db.UsernameFilter;
+import scheduler.hold.HoldTable;
+import scheduler.inventory.LotInventory;
+import scheduler.model.Availability;
+import scheduler.model.BulkReservation;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
+import scheduler.model.SeriesReservation;
 import scheduler.model.Vaccine;
+import scheduler.model.VaccineSeries;
+import scheduler.reminder.ReminderService;
+import scheduler.report.ReservationExporter;
+import scheduler.report.UsageReport;
+import scheduler.util.AppointmentCache;
+import scheduler.util.LoginThrottle;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Date;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Scheduler {
 
@@ -23,11 +56,46 @@ public class Scheduler {
     private static Caregiver currentCaregiver = null;
     private static Patient currentPatient = null;
 
+    // usernames that already exist per role, loaded at startup so new names can skip the lookup
+    private static final UsernameFilter patientNames = new UsernameFilter("Patients");
+    private static final UsernameFilter caregiverNames = new UsernameFilter("Caregivers");
+
+    // sheds abusive login bursts before they reach the password hashing and the database
+    private static final LoginThrottle loginThrottle = LoginThrottle.fromEnvironment();
+    // locks an account out after repeated wrong passwords, counted across every process
+    private static final FailedLogins failedLogins = FailedLogins.fromEnvironment();
+
+    // session tokens shared by every process, so a client can resume in another one
+    private static final SessionStore sessions = SessionStore.fromEnvironment();
+    // the token of the current session, revoked on logout; null if none could be issued
+    private static String currentToken = null;
+
+    // the vaccination site whose availabilities, vaccines and reservations the commands work on
+    private static String currentSite = initialSite();
+
+    // slots patients are deciding on, kept on the site shards and skipped by every session until confirmed or expired
+    private static final HoldTable holds = HoldTable.fromEnvironment();
+
+    // recent show_appointments listings, kept current by this process's bookings and cancellations
+    private static final AppointmentCache appointments = AppointmentCache.fromEnvironment();
+
+    // startup timings for stats: launch to prompt, the warm-up within it and the first command, -1 until known
+    private static long readyMillis = -1;
+    private static long warmUpMillis = -1;
+    private static long firstCommandMillis = -1;
+
     public static void main(String[] args) {
         // printing greetings text
         System.out.println();
         System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        // short scripted runs skip the warm-up, they would spend longer warming up than running
+        if (!Arrays.asList(args).contains("--no-warmup") && !"off".equals(System.getenv("Warmup"))) {
+            warmUp();
+        }
+        loadUsernameFilters();
         printCommands();
+        readyMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.out.println("Ready after " + readyMillis + " ms");
 
         // read input from user
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
@@ -48,6 +116,8 @@ public class Scheduler {
             }
             // determine which operation to perform
             String operation = tokens[0];
+            StatementLog.setCommand(operation);
+            long commandStarted = System.currentTimeMillis();
             boolean reprintCommands = true;
             if (operation.equals("create_patient")) {
                 createPatient(tokens);
@@ -57,18 +127,42 @@ public class Scheduler {
                 loginPatient(tokens);
             } else if (operation.equals("login_caregiver")) {
                 loginCaregiver(tokens);
+            } else if (operation.equals("resume")) {
+                resume(tokens);
+            } else if (operation.equals("use_site")) {
+                useSite(tokens);
             } else if (operation.equals("search_caregiver_schedule")) {
                 searchCaregiverSchedule(tokens);
             } else if (operation.equals("reserve")) {
                 reserve(tokens);
+            } else if (operation.equals("hold")) {
+                hold(tokens);
+            } else if (operation.equals("confirm")) {
+                confirm(tokens);
+            } else if (operation.equals("reserve_series")) {
+                reserveSeries(tokens);
+            } else if (operation.equals("bulk_reserve")) {
+                bulkReserve(tokens);
             } else if (operation.equals("upload_availability")) {
                 uploadAvailability(tokens);
+            } else if (operation.equals("add_availability_rule")) {
+                addAvailabilityRule(tokens);
+            } else if (operation.equals("skip_availability")) {
+                skipAvailability(tokens);
             } else if (operation.equals("cancel")) {
                 cancel(tokens);
             } else if (operation.equals("add_doses")) {
                 addDoses(tokens);
+            } else if (operation.equals("define_series")) {
+                defineSeries(tokens);
             } else if (operation.equals("show_appointments")) {
                 showAppointments(tokens);
+            } else if (operation.equals("report")) {
+                report(tokens);
+            } else if (operation.equals("export")) {
+                export(tokens);
+            } else if (operation.equals("stats")) {
+                stats(tokens);
             } else if (operation.equals("logout")) {
                 logout(tokens);
             } else if (operation.equals("quit")) {
@@ -78,6 +172,9 @@ public class Scheduler {
                 System.out.println("Invalid operation name!");
                 reprintCommands = false;
             }
+            if (firstCommandMillis == -1 && reprintCommands) {
+                firstCommandMillis = System.currentTimeMillis() - commandStarted;
+            }
             if (reprintCommands) {
                 System.out.println();
                 printCommands();
@@ -91,17 +188,88 @@ public class Scheduler {
         System.out.println("> create_caregiver <username> <password>");
         System.out.println("> login_patient <username> <password>");
         System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");
-        System.out.println("> reserve <date> <vaccine>");
+        System.out.println("> resume <token>");
+        System.out.println("> use_site <site>");
+        System.out.println("> search_caregiver_schedule <date> [all]");
+        System.out.println("> reserve <date> <vaccine> [<request_key>]");
+        System.out.println("> hold <date> <vaccine>");
+        System.out.println("> confirm");
+        System.out.println("> reserve_series <date> <vaccine> [<request_key>]");
+        System.out.println("> bulk_reserve <file>");
         System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");
-        System.out.println("> add_doses <vaccine> <number>");
+        System.out.println("> add_availability_rule <first> <last> <weekdays, e.g. Mon,Wed,Fri> [<skipped date> ...]");
+        System.out.println("> skip_availability <date>");
+        System.out.println("> cancel <appointment_id> [<request_key>]");
+        System.out.println("> add_doses <vaccine> <number> <lot> <expiry> [<vaccine> <number> <lot> <expiry> ...]");
+        System.out.println("> define_series <vaccine> <doses> <min_days> <max_days>");
         System.out.println("> show_appointments");
+        System.out.println("> report <from> <to>");
+        System.out.println("> export <directory> [full]");
+        System.out.println("> stats");
         System.out.println("> logout");
         System.out.println("> quit");
         System.out.println();
     }
 
+    private static String initialSite() {
+        String site = System.getenv("Site");
+        return site == null || !ConnectionManager.isSite(site) ? ConnectionManager.DEFAULT_SITE : site;
+    }
+
+    private static void loadUsernameFilters() {
+        try {
+            patientNames.load();
+            caregiverNames.load();
+        } catch (Exception e) {
+            // the filters are only a shortcut, usernames are still checked against the database
+            System.out.println("Could not load usernames, checking each one against the database");
+        }
+    }
+
+    // Fills the connection pools in the background while the crypto provider is loaded and passwords are
+    // hashed, then runs the schedule search, so the first command finds open connections, loaded classes and
+    // compiled hot paths. Bounded by WarmupMillis, 500 by default.
+    private static void warmUp() {
+        long started = System.currentTimeMillis();
+        String budget = System.getenv("WarmupMillis");
+        long deadline = started + (budget == null ? 500 : Long.parseLong(budget));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Integer> connections = executor.submit(ConnectionManager::prefill);
+        int hashes = 0;
+        int searches = 0;
+        try {
+            // the first PBKDF2 call initializes the providers, the later ones give the JIT something to compile
+            byte[] salt = Util.generateSalt();
+            do {
+                Util.generateHash("Warm-up#1", salt);
+                hashes++;
+            } while (hashes < 100 && System.currentTimeMillis() < (started + deadline) / 2);
+
+            int opened = connections.get();
+            Date today = Date.valueOf(LocalDate.now());
+            while (opened > 0 && System.currentTimeMillis() < deadline) {
+                siteSchedule(currentSite, today);
+                searches++;
+            }
+            System.out.println("Warm-up: " + opened + " connections, " + hashes + " hashes, " + searches + " searches");
+        } catch (ExecutionException | SQLException | RuntimeException e) {
+            // the first command reports what is wrong with the database
+            System.out.println("Warm-up stopped: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        warmUpMillis = System.currentTimeMillis() - started;
+    }
+
+    private static boolean isDuplicateKey(SQLException e) {
+        // 2627 / 2601 are SQL Server's primary key and unique index violations; other 23000 errors
+        // (foreign keys, checks, nulls) are not races and must not be retried
+        return e.getErrorCode() == 2627 || e.getErrorCode() == 2601;
+    }
+
     private static void createPatient(String[] tokens) {
         // create_patient <username> <password>
         // check 1: length of tokens
@@ -118,10 +286,14 @@ public class Scheduler {
             return;
         }
 
-        // check 3: check whether username already exists
-        if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again");
-            return;
+        // check 3: check whether username already exists, unless the filter says it is certainly new
+        if (!patientNames.isDefinitelyNew(username)) {
+            boolean exists = usernameExistsPatient(username);
+            patientNames.recordLookup(exists);
+            if (exists) {
+                System.out.println("Username taken, try again");
+                return;
+            }
         }
 
         // create the patient
@@ -130,8 +302,15 @@ public class Scheduler {
         try {
             Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
             patient.saveToDB();
+            patientNames.add(username);
             System.out.println("Created user " + username);
         } catch (SQLException e) {
+            if (isDuplicateKey(e)) {
+                // created concurrently since the check, the primary key caught it
+                patientNames.add(username);
+                System.out.println("Username taken, try again");
+                return;
+            }
             System.out.println("Create patient failed");
             e.printStackTrace();
         }
@@ -150,10 +329,14 @@ public class Scheduler {
             System.out.println("Please use a strong password");
             return;
         }
-        // check 2: check if the username has been taken already
-        if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
-            return;
+        // check 2: check if the username has been taken already, unless the filter says it is certainly new
+        if (!caregiverNames.isDefinitelyNew(username)) {
+            boolean exists = usernameExistsCaregiver(username);
+            caregiverNames.recordLookup(exists);
+            if (exists) {
+                System.out.println("Username taken, try again!");
+                return;
+            }
         }
         byte[] salt = Util.generateSalt();
         byte[] hash = Util.generateHash(password, salt);
@@ -162,8 +345,15 @@ public class Scheduler {
             Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
             // save to caregiver information to our database
             caregiver.saveToDB();
+            caregiverNames.add(username);
             System.out.println("Created user " + username);
         } catch (SQLException e) {
+            if (isDuplicateKey(e)) {
+                // created concurrently since the check, the primary key caught it
+                caregiverNames.add(username);
+                System.out.println("Username taken, try again!");
+                return;
+            }
             System.out.println("Failed to create user.");
             e.printStackTrace();
         }
@@ -227,9 +417,22 @@ public class Scheduler {
         String username = tokens[1];
         String password = tokens[2];
 
+        // check 3: admission control, before any hashing or database work
+        if (!loginThrottle.admit("patient", username)) {
+            System.out.println("Too many login attempts, try again later");
+            return;
+        }
+        // check 4: wrong passwords against the account from any process
+        int failures = loginFailures("patient", username);
+        if (failures == -1) {
+            return;
+        }
+
         Patient patient = null;
+        boolean checked = false;
         try {
             patient = new Patient.PatientGetter(username, password).get();
+            checked = true;
         } catch (SQLException e) {
             System.out.println("Login failed.");
             e.printStackTrace();
@@ -238,9 +441,14 @@ public class Scheduler {
         // check if the login was successful
         if (patient == null) {
             System.out.println("Login patient failed.");
+            if (checked) {
+                recordLoginFailure("patient", username);
+            }
         } else {
+            clearLoginFailures("patient", username, failures);
             currentPatient = patient;
             System.out.println("Logged in as: " + username);
+            issueToken(SessionStore.PATIENT, patient.getId());
         }
     }
 
@@ -259,9 +467,22 @@ public class Scheduler {
         String username = tokens[1];
         String password = tokens[2];
 
+        // check 3: admission control, before any hashing or database work
+        if (!loginThrottle.admit("caregiver", username)) {
+            System.out.println("Too many login attempts, try again later");
+            return;
+        }
+        // check 4: wrong passwords against the account from any process
+        int failures = loginFailures("caregiver", username);
+        if (failures == -1) {
+            return;
+        }
+
         Caregiver caregiver = null;
+        boolean checked = false;
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
+            checked = true;
         } catch (SQLException e) {
             System.out.println("Login failed.");
             e.printStackTrace();
@@ -269,67 +490,227 @@ public class Scheduler {
         // check if the login was successful
         if (caregiver == null) {
             System.out.println("Login failed.");
+            if (checked) {
+                recordLoginFailure("caregiver", username);
+            }
         } else {
+            clearLoginFailures("caregiver", username, failures);
             System.out.println("Logged in as: " + username);
             currentCaregiver = caregiver;
+            issueToken(SessionStore.CAREGIVER, caregiver.getId());
         }
     }
 
+    private static void resume(String[] tokens) {
+        // resume <token>
+        // check 1: if someone's already logged-in, they need to log out first
+        if (currentCaregiver != null || currentPatient != null) {
+            System.out.println("User already logged in.");
+            return;
+        }
+        // check 2: token length
+        if (tokens.length != 2) {
+            System.out.println("Please try again");
+            return;
+        }
+        // no password hash, the token was issued by a successful login in this or another process;
+        // the session is null once the token is unknown, expired or logged out
+        try {
+            SessionStore.Session session = sessions.resume(tokens[1]);
+            if (session != null && session.getRole().equals(SessionStore.PATIENT)) {
+                currentPatient = Patient.resumed(session.getUserId(), session.getUsername(), session.getSalt(),
+                        session.getHash());
+            } else if (session != null) {
+                currentCaregiver = Caregiver.resumed(session.getUserId(), session.getUsername(), session.getSalt(),
+                        session.getHash());
+            }
+        } catch (SQLException e) {
+            System.out.println("Please try again");
+            e.printStackTrace();
+            return;
+        }
+        if (currentPatient != null) {
+            currentToken = tokens[1];
+            System.out.println("Logged in as: " + currentPatient.getUsername());
+        } else if (currentCaregiver != null) {
+            currentToken = tokens[1];
+            System.out.println("Logged in as: " + currentCaregiver.getUsername());
+        } else {
+            System.out.println("Session expired, please login again");
+        }
+    }
+
+    // Wrong passwords against the account from any process, or -1 when the login stops here: the account is
+    // locked out (the reason is printed) or the count could not be read, which counts as locked out
+    private static int loginFailures(String role, String username) {
+        try {
+            int failures = failedLogins.countFailures(role, username);
+            if (failedLogins.isLockedOut(failures)) {
+                System.out.println("Too many login attempts, try again later");
+                return -1;
+            }
+            return failures;
+        } catch (SQLException e) {
+            System.out.println("Login failed.");
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private static void recordLoginFailure(String role, String username) {
+        // past this process's own limit the account is refused locally, the database count stays as it is
+        if (!loginThrottle.recordFailure(role, username)) {
+            return;
+        }
+        try {
+            failedLogins.recordFailure(role, username);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // failures is the count read before the password check, there is no row to delete when it was 0
+    private static void clearLoginFailures(String role, String username, int failures) {
+        loginThrottle.clearFailures(role, username);
+        if (failures == 0) {
+            return;
+        }
+        try {
+            failedLogins.clear(role, username);
+        } catch (SQLException e) {
+            // the count runs out with its window anyway
+            e.printStackTrace();
+        }
+    }
+
+    private static void issueToken(String role, int userId) {
+        try {
+            currentToken = sessions.issue(role, userId);
+            System.out.println("Session token: " + currentToken);
+        } catch (SQLException e) {
+            // the login itself succeeded, only resuming it elsewhere is not possible
+            System.out.println("No session token issued");
+            e.printStackTrace();
+        }
+    }
+
+    private static void useSite(String[] tokens) {
+        // use_site <site>
+        // check 1: token length
+        if (tokens.length != 2) {
+            System.out.println("Please try again");
+            return;
+        }
+        // check 2: the site must be configured
+        if (!ConnectionManager.isSite(tokens[1])) {
+            System.out.println("Unknown site, the sites are " + ConnectionManager.getSites());
+            return;
+        }
+        currentSite = tokens[1];
+        System.out.println("Using site " + currentSite);
+    }
+
     private static void searchCaregiverSchedule(String[] tokens) {
-        // search_caregiver_schedule <date>
+        // search_caregiver_schedule <date> [all]
         // check 1: login
         if (currentCaregiver == null && currentPatient == null) {
             System.out.println("Please login first");
             return;
         }
 
-        // check 2: token length
-        if (tokens.length != 2) {
+        // check 2: token length, "all" searches every site
+        if (tokens.length != 2 && !(tokens.length == 3 && tokens[2].equals("all"))) {
             System.out.println("Please try again");
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        Date d;
+        try {
+            d = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please try again");
+            return;
+        }
 
-        String date = tokens[1];
+        if (tokens.length == 2) {
+            try {
+                System.out.print(siteSchedule(currentSite, d));
+            } catch (Exception e) {
+                System.out.println("Please try again");
+                e.printStackTrace();
+            }
+            return;
+        }
 
+        // scatter the search to every site at once and print the answers in site order
+        List<String> sites = new ArrayList<>(ConnectionManager.getSites());
+        ExecutorService executor = Executors.newFixedThreadPool(sites.size());
         try {
-            Date d = Date.valueOf(date);
+            List<Future<String>> schedules = new ArrayList<>();
+            for (String site : sites) {
+                schedules.add(executor.submit(() -> siteSchedule(site, d)));
+            }
+            for (int i = 0; i < sites.size(); i++) {
+                System.out.println("Site " + sites.get(i) + ":");
+                try {
+                    System.out.print(schedules.get(i).get());
+                } catch (ExecutionException e) {
+                    // one unreachable site does not hide the others
+                    System.out.println("Please try again");
+                    e.getCause().printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Please try again");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            // get the data of caregivers
-            String searchSchedule = "SELECT username FROM Availabilities WHERE time = ? ORDER BY username";
-            PreparedStatement statement = con.prepareStatement(searchSchedule);
-            statement.setDate(1, d);
-            ResultSet resultSet = statement.executeQuery();
+    // The free caregivers and the vaccines in stock at the site on the date, one per line. Caregivers and
+    // doses held by other patients are left out, the searching patient's own hold still shows.
+    private static String siteSchedule(String site, Date d) throws SQLException {
+        // read-only, so it can be served by the replica
+        ConnectionManager cm = ConnectionManager.forSiteRead(site);
+        Connection con = cm.createConnection();
+        int patientId = currentPatient == null ? -1 : currentPatient.getId();
 
-            // get all the name of caregivers
-            while (resultSet.next()) {
-                String username = resultSet.getString("username");
-                System.out.println(username);
+        try {
+            StringBuilder sb = new StringBuilder();
+
+            // get the free caregivers, one-off and recurring, already in username order
+            Set<Integer> held = holds.heldCaregivers(con, site, d, patientId);
+            for (int caregiverId : Availability.freeCaregivers(con, site, d)) {
+                if (!held.contains(caregiverId)) {
+                    sb.append(NameTable.CAREGIVERS.nameOf(caregiverId)).append('\n');
+                }
             }
 
-            // get the data of vaccines
-            String searchVaccine = "SELECT name, doses FROM Vaccines WHERE doses > 0 ";
-            statement = con.prepareStatement(searchVaccine);
-            resultSet = statement.executeQuery();
+            // get the data of vaccines, less the doses held by others
+            String searchVaccine = "SELECT name, doses FROM (SELECT v.Name AS name, v.Doses - " +
+                    "(SELECT COUNT(*) FROM Holds h WHERE h.Site = v.Site AND h.VaccineID = v.ID " +
+                    "AND h.PatientID <> ? AND h.ExpiresAt > SYSUTCDATETIME()) AS doses " +
+                    "FROM Vaccines v WHERE v.Site = ?) AS stock WHERE doses > 0";
+            PreparedStatement statement = con.prepareStatement(searchVaccine);
+            statement.setInt(1, patientId);
+            statement.setString(2, site);
+            ResultSet resultSet = statement.executeQuery();
 
             // get all the name of vaccines
             while (resultSet.next()) {
                 String name = resultSet.getString("name");
                 int doses = resultSet.getInt("doses");
-                System.out.println(name + " " + doses);
+                sb.append(name).append(' ').append(doses).append('\n');
             }
-        } catch (Exception e) {
-            System.out.println("Please try again");
-            e.printStackTrace();
+            return sb.toString();
         } finally {
             cm.closeConnection();
         }
     }
 
     private static void reserve(String[] tokens) {
-        // reserve <date> <vaccine>
+        // reserve <date> <vaccine> [<request_key>]
         // check 1: login
         if (currentCaregiver == null && currentPatient == null) {
             System.out.println("Please login first");
@@ -343,106 +724,403 @@ public class Scheduler {
         }
 
         // check 3: token length
-        if (tokens.length != 3) {
+        if (tokens.length != 3 && tokens.length != 4) {
             System.out.println("Please try again");
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        // without a key from the client the retries below are still safe, only a resubmission is not
+        String requestKey = tokens.length == 4 ? tokens[3] : newRequestKey();
+        if (!isValidRequestKey(requestKey)) {
+            System.out.println("Please try again");
+            return;
+        }
 
         String date = tokens[1];
         String vaccineName = tokens[2];
 
         try {
             Date d = Date.valueOf(date);
+            System.out.println(Retry.run(() -> reserveOnce(d, vaccineName, requestKey, -1)));
+        } catch (Exception e) {
+            System.out.println("Please try again");
+            e.printStackTrace();
+        }
+    }
 
-            // check 4: caregivers and conflicts
-            String caregiverQuery = "SELECT username FROM Availabilities WHERE time = ? ORDER BY username";
-            PreparedStatement caregiverStatement = con.prepareStatement(caregiverQuery);
-            caregiverStatement.setDate(1, d);
-            ResultSet caregiverResult = caregiverStatement.executeQuery();
-
-            String caregiverName = null;
-            while (caregiverResult.next()) {
-                String potentialCaregiver = caregiverResult.getString("username");
-                String conflictQuery = "SELECT * FROM Reservations WHERE Time = ? AND CaregiverName = ?";
-                PreparedStatement conflictStatement = con.prepareStatement(conflictQuery);
-                conflictStatement.setDate(1, d);
-                conflictStatement.setString(2, potentialCaregiver);
-                ResultSet conflictResult = conflictStatement.executeQuery();
-                if (!conflictResult.next()) {
-                    caregiverName = potentialCaregiver;
-                    break;
-                }
+    // One attempt at a reservation, made in a single transaction; returns the message for the patient.
+    // A request key that already booked an appointment reports that appointment instead of booking another.
+    // Caregivers and doses held by others are skipped; heldCaregiver books the patient's own hold instead
+    // of the first free caregiver, -1 when there is none. The patient's hold at the site is consumed by the
+    // booking either way, reserving directly gives it up.
+    private static String reserveOnce(Date d, String vaccineName, String requestKey, int heldCaregiver)
+            throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(currentSite);
+        Connection con = connect(cm);
+        LotInventory lots = LotInventory.forSite(currentSite);
+        // the vaccine a dose was taken from in memory, re-read if the transaction does not commit
+        int takenFrom = -1;
+
+        try {
+            con.setAutoCommit(false);
+
+            String booked = findReservation(con, requestKey);
+            if (booked != null) {
+                return booked;
             }
-            if (caregiverName == null) {
-                System.out.println("No caregiver is available");
-                return;
+
+            // check 4: caregivers and conflicts, the first free caregiver by username that is not held
+            int caregiverId = pickCaregiver(Availability.freeCaregivers(con, currentSite, d),
+                    holds.heldCaregivers(con, currentSite, d, currentPatient.getId()), heldCaregiver);
+            if (caregiverId == -1) {
+                return heldCaregiver == -1 ? "No caregiver is available" : "The held caregiver is no longer available";
             }
+            String caregiverName = NameTable.CAREGIVERS.nameOf(caregiverId);
 
             // check 5: vaccine
-            String vaccineQuery = "SELECT doses FROM Vaccines WHERE name = ?";
+            int vaccineId = NameTable.vaccines(currentSite).idOf(vaccineName);
+            if (vaccineId == -1) {
+                return "Please try again";
+            }
+            String vaccineQuery = "SELECT Doses FROM Vaccines WITH (UPDLOCK, HOLDLOCK) WHERE ID = ?";
             PreparedStatement vaccineStatement = con.prepareStatement(vaccineQuery);
-            vaccineStatement.setString(1, vaccineName);
+            vaccineStatement.setInt(1, vaccineId);
             ResultSet vaccineResult = vaccineStatement.executeQuery();
             if (!vaccineResult.next()) {
-                System.out.println("Please try again");
-                return;
+                return "Please try again";
             }
-            int availableDoses = vaccineResult.getInt("doses");
+            int availableDoses = vaccineResult.getInt("doses")
+                    - holds.heldDoses(con, currentSite, vaccineId, currentPatient.getId());
             if (availableDoses <= 0) {
-                System.out.println("Not enough available doses");
-                return;
+                return "Not enough available doses";
+            }
+            // the earliest-expiring lot still good on the date, picked in memory
+            int lotId = lots.take(con, vaccineId, d.toLocalDate());
+            if (lotId == -1) {
+                return "Not enough available doses";
             }
+            takenFrom = vaccineId;
 
-            // Make reservation
-            String reservationQuery = "INSERT INTO Reservations (Time, CaregiverName, VaccineName, PatientName) VALUES (?, ?, ?, ?)";
-            PreparedStatement reservationStatement = con.prepareStatement(reservationQuery);
-            reservationStatement.setDate(1, d);
-            reservationStatement.setString(2, caregiverName);
-            reservationStatement.setString(3, vaccineName);
-            reservationStatement.setString(4, currentPatient.getUsername());
-            reservationStatement.executeUpdate();
-
-            // Retrieve appointmentID
-            String getAppointmentIdQuery = "SELECT ID FROM Reservations WHERE Time = ? AND CaregiverName = ? AND VaccineName = ? AND PatientName = ?";
-            PreparedStatement getAppointmentIdStatement = con.prepareStatement(getAppointmentIdQuery);
-            getAppointmentIdStatement.setDate(1, d);
-            getAppointmentIdStatement.setString(2, caregiverName);
-            getAppointmentIdStatement.setString(3, vaccineName);
-            getAppointmentIdStatement.setString(4, currentPatient.getUsername());
-            ResultSet appointmentIdResult = getAppointmentIdStatement.executeQuery();
-            int appointmentId = -1;
-            if (appointmentIdResult.next()) {
-                appointmentId = appointmentIdResult.getInt("ID");
-            } else {
-                System.out.println("Please try again");
+            // only the chosen caregiver-day is locked, after the vaccine as every booking takes them
+            if (!Availability.lockCaregiverDay(con, currentSite, d, caregiverId)) {
+                throw new SQLException("Caregiver was booked concurrently", "40001");
             }
 
-            // Update doses
-            String updateVaccineQuery = "UPDATE Vaccines SET doses = doses - 1 WHERE name = ?";
-            PreparedStatement updateVaccineStatement = con.prepareStatement(updateVaccineQuery);
-            updateVaccineStatement.setString(1, vaccineName);
+            // Make reservation, the insert hands back the generated appointment ID
+            String reservationQuery = "INSERT INTO Reservations (Site, Time, CaregiverID, VaccineID, PatientID, RequestKey, LotID) " +
+                    ReminderService.RECORD_BOOKING + "OUTPUT INSERTED.ID VALUES (?, ?, ?, ?, ?, ?, ?)";
+            PreparedStatement reservationStatement = con.prepareStatement(reservationQuery);
+            reservationStatement.setString(1, currentSite);
+            reservationStatement.setDate(2, d);
+            reservationStatement.setInt(3, caregiverId);
+            reservationStatement.setInt(4, vaccineId);
+            reservationStatement.setInt(5, currentPatient.getId());
+            reservationStatement.setString(6, requestKey);
+            reservationStatement.setInt(7, lotId);
+            ResultSet appointmentIdResult = reservationStatement.executeQuery();
+            appointmentIdResult.next();
+            int appointmentId = appointmentIdResult.getInt("ID");
+
+            // Update doses, of the lot and of the vaccine in one round trip
+            PreparedStatement updateVaccineStatement = con.prepareStatement(LotInventory.TAKE_DOSES);
+            updateVaccineStatement.setInt(1, 1);
+            updateVaccineStatement.setInt(2, lotId);
+            updateVaccineStatement.setInt(3, vaccineId);
             updateVaccineStatement.executeUpdate();
 
             // Remove caregiver availability
-            String deleteAvailabilityQuery = "DELETE FROM Availabilities WHERE time = ? AND username = ?";
+            String deleteAvailabilityQuery = "DELETE FROM Availabilities WHERE Site = ? AND Time = ? AND CaregiverID = ?";
             PreparedStatement deleteAvailabilityStmt = con.prepareStatement(deleteAvailabilityQuery);
-            deleteAvailabilityStmt.setDate(1, d);
-            deleteAvailabilityStmt.setString(2, caregiverName);
+            deleteAvailabilityStmt.setString(1, currentSite);
+            deleteAvailabilityStmt.setDate(2, d);
+            deleteAvailabilityStmt.setInt(3, caregiverId);
             deleteAvailabilityStmt.executeUpdate();
 
-            System.out.println("Appointment ID " + appointmentId + ", Caregiver username " + caregiverName);
+            // the hold becomes the appointment
+            holds.release(con, currentPatient.getId(), currentSite);
+
+            con.commit();
+            ConnectionManager.recordWrite();
+            appointments.booked(currentSite, appointmentId, vaccineName, d, currentPatient.getUsername(), caregiverName);
+            return "Appointment ID " + appointmentId + ", Caregiver username " + caregiverName;
+        } catch (SQLException e) {
+            rollback(con);
+            if (takenFrom != -1) {
+                lots.invalidate(takenFrom);
+            }
+            if (isDuplicateKey(e)) {
+                // the same request committed concurrently, the unique request key index caught it
+                String booked = findReservation(con, requestKey);
+                if (booked != null) {
+                    return booked;
+                }
+            }
+            if (LotInventory.isStale(e)) {
+                // another process drew on the lot, book again with the lots re-read
+                throw new SQLException("Lot inventory was stale", "40001", e);
+            }
+            if (isDuplicateKey(e)) {
+                // the caregiver-day index caught a double booking the caregiver-day lock did not prevent
+                throw new SQLException("Caregiver was booked concurrently", "40001", e);
+            }
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // The message for the appointment the patient already booked with the request key, or null
+    private static String findReservation(Connection con, String requestKey) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(
+                "SELECT ID, CaregiverID FROM Reservations WHERE Site = ? AND PatientID = ? AND RequestKey = ?");
+        statement.setString(1, currentSite);
+        statement.setInt(2, currentPatient.getId());
+        statement.setString(3, requestKey);
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            return null;
+        }
+        return "Appointment ID " + resultSet.getInt("ID") + ", Caregiver username "
+                + NameTable.CAREGIVERS.nameOf(resultSet.getInt("CaregiverID"));
+    }
 
+    // The held caregiver if they are still free and nobody else holds them (the patient's hold may have
+    // expired), otherwise the first free caregiver nobody holds; -1 if none
+    private static int pickCaregiver(int[] freeCaregivers, Set<Integer> held, int heldCaregiver) {
+        for (int caregiverId : freeCaregivers) {
+            if (!held.contains(caregiverId) && (heldCaregiver == -1 || caregiverId == heldCaregiver)) {
+                return caregiverId;
+            }
+        }
+        return -1;
+    }
+
+    private static void hold(String[] tokens) {
+        // hold <date> <vaccine>
+        // check 1: login as patient
+        if (currentPatient == null) {
+            System.out.println("Please login as a patient");
+            return;
+        }
+        // check 2: token length
+        if (tokens.length != 3) {
+            System.out.println("Please try again");
+            return;
+        }
+
+        Date d;
+        try {
+            d = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please try again");
+            return;
+        }
+        try {
+            System.out.println(Retry.run(() -> holdOnce(d, tokens[2])));
         } catch (Exception e) {
             System.out.println("Please try again");
             e.printStackTrace();
+        }
+    }
+
+    // One attempt at placing a hold, made in a single transaction; returns the message for the patient.
+    // Availabilities are read without locks, the claim itself is the row in the Holds table. The vaccine row
+    // is locked so that concurrent holds cannot promise more doses than are in stock.
+    private static String holdOnce(Date d, String vaccineName) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(currentSite);
+        Connection con = connect(cm);
+        try {
+            con.setAutoCommit(false);
+
+            // the patient's previous hold at the site no longer counts against the new one
+            int caregiverId = pickCaregiver(Availability.freeCaregivers(con, currentSite, d),
+                    holds.heldCaregivers(con, currentSite, d, currentPatient.getId()), -1);
+            if (caregiverId == -1) {
+                return "No caregiver is available";
+            }
+
+            int vaccineId = NameTable.vaccines(currentSite).idOf(vaccineName);
+            if (vaccineId == -1) {
+                return "Please try again";
+            }
+            PreparedStatement vaccineStatement = con.prepareStatement(
+                    "SELECT Doses FROM Vaccines WITH (UPDLOCK, HOLDLOCK) WHERE ID = ?");
+            vaccineStatement.setInt(1, vaccineId);
+            ResultSet vaccineResult = vaccineStatement.executeQuery();
+            if (!vaccineResult.next() || vaccineResult.getInt("Doses")
+                    - holds.heldDoses(con, currentSite, vaccineId, currentPatient.getId()) <= 0) {
+                return "Not enough available doses";
+            }
+
+            HoldTable.Hold hold = holds.place(con, currentPatient.getId(), currentSite, d, caregiverId, vaccineName,
+                    vaccineId);
+            if (hold == null) {
+                return "Too many pending holds, please reserve directly";
+            }
+            con.commit();
+            return "Holding caregiver " + NameTable.CAREGIVERS.nameOf(caregiverId) + " on " + d
+                    + " for " + holds.getTtlSeconds() + " seconds, confirm to book it";
+        } catch (SQLException e) {
+            rollback(con);
+            if (isDuplicateKey(e)) {
+                // another patient held the caregiver on the date since the read, pick again
+                throw new SQLException("Caregiver was held concurrently", "40001", e);
+            }
+            throw e;
         } finally {
             cm.closeConnection();
         }
     }
 
+    private static void confirm(String[] tokens) {
+        // confirm
+        // check 1: login as patient
+        if (currentPatient == null) {
+            System.out.println("Please login as a patient");
+            return;
+        }
+        // check 2: token length
+        if (tokens.length != 1) {
+            System.out.println("Please try again");
+            return;
+        }
+        // check 3: an unexpired hold at the current site
+        HoldTable.Hold hold;
+        ConnectionManager cm = ConnectionManager.forSite(currentSite);
+        try {
+            hold = holds.get(connect(cm), currentPatient.getId(), currentSite);
+        } catch (SQLException e) {
+            System.out.println("Please try again");
+            e.printStackTrace();
+            return;
+        } finally {
+            cm.closeConnection();
+        }
+        if (hold == null) {
+            System.out.println("No pending hold at site " + currentSite + ", please hold again");
+            return;
+        }
+
+        // booking consumes the hold in the same transaction, so a retry after a commit finds the appointment
+        try {
+            System.out.println(Retry.run(() -> reserveOnce(hold.getTime(), hold.getVaccineName(),
+                    hold.getRequestKey(), hold.getCaregiverId())));
+        } catch (Exception e) {
+            System.out.println("Please try again");
+            e.printStackTrace();
+        }
+    }
+
+    private static void reserveSeries(String[] tokens) {
+        // reserve_series <date> <vaccine> [key], the date of the first dose
+        // check 1: login as patient
+        if (currentPatient == null) {
+            System.out.println("Please login as a patient");
+            return;
+        }
+        // check 2: token length
+        if (tokens.length != 3 && tokens.length != 4) {
+            System.out.println("Please try again");
+            return;
+        }
+        String requestKey = tokens.length == 4 ? tokens[3] : newRequestKey();
+        if (!isValidRequestKey(requestKey)) {
+            System.out.println("Please try again");
+            return;
+        }
+
+        SeriesReservation series;
+        try {
+            Date d = Date.valueOf(tokens[1]);
+            series = new SeriesReservation.SeriesReservationBuilder(currentSite, currentPatient.getId(), tokens[2], d,
+                    requestKey, holds).build();
+            Retry.run(() -> {
+                series.reserve();
+                return null;
+            });
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please try again");
+            return;
+        } catch (SQLException e) {
+            System.out.println("Please try again");
+            e.printStackTrace();
+            return;
+        }
+        if (!series.isBooked()) {
+            System.out.println(series.getResult());
+            return;
+        }
+
+        ConnectionManager.recordWrite();
+        int dose = 1;
+        for (SeriesReservation.Appointment appointment : series.getAppointments()) {
+            appointments.booked(currentSite, appointment.getAppointmentId(), tokens[2], appointment.getTime(),
+                    currentPatient.getUsername(), appointment.getCaregiverName());
+            System.out.println("Dose " + dose++ + ": Appointment ID " + appointment.getAppointmentId() + ", "
+                    + appointment.getTime() + ", Caregiver username " + appointment.getCaregiverName());
+        }
+    }
+
+    private static void bulkReserve(String[] tokens) {
+        // bulk_reserve <file>, one "<patient> <date> <vaccine>" row per line
+        // check 1: bookings for groups are made by clinic staff
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: token length
+        if (tokens.length != 2) {
+            System.out.println("Please try again");
+            return;
+        }
+
+        BulkReservation.BulkReservationBuilder builder = new BulkReservation.BulkReservationBuilder(currentSite, holds);
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(tokens[1]))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] row = line.trim().split("\\s+");
+                if (row.length == 1 && row[0].isEmpty()) {
+                    continue;
+                }
+                if (row.length != 3) {
+                    System.out.println("Invalid row: " + line);
+                    return;
+                }
+                builder.addRow(row[0], row[1], row[2]);
+                lines.add(line.trim());
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read " + tokens[1]);
+            return;
+        }
+
+        BulkReservation bulk = builder.build();
+        try {
+            Retry.run(() -> {
+                bulk.reserve();
+                return null;
+            });
+            ConnectionManager.recordWrite();
+        } catch (SQLException e) {
+            System.out.println("Please try again");
+            e.printStackTrace();
+            return;
+        }
+
+        int booked = 0;
+        List<BulkReservation.Row> rows = bulk.getRows();
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i).isBooked()) {
+                booked++;
+                appointments.booked(currentSite, rows.get(i).getAppointmentId(), rows.get(i).getVaccineName(),
+                        rows.get(i).getTime(), rows.get(i).getPatientName(), rows.get(i).getCaregiverName());
+            }
+            System.out.println(lines.get(i) + ": " + rows.get(i).getResult());
+        }
+        System.out.println("Booked " + booked + " of " + rows.size() + " rows");
+    }
+
     private static void uploadAvailability(String[] tokens) {
         // upload_availability <date>
         // check 1: check if the current logged-in user is a caregiver
@@ -458,7 +1136,8 @@ public class Scheduler {
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
+            currentCaregiver.uploadAvailability(d, currentSite);
+            ConnectionManager.recordWrite();
             System.out.println("Availability uploaded!");
         } catch (IllegalArgumentException e) {
             System.out.println("Please enter a valid date!");
@@ -468,7 +1147,97 @@ public class Scheduler {
         }
     }
 
+    private static void addAvailabilityRule(String[] tokens) {
+        // add_availability_rule <first> <last> <weekdays> [<skipped date> ...]
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the tokens need to hold at least the range and the weekdays
+        if (tokens.length < 4) {
+            System.out.println("Please try again!");
+            return;
+        }
+        Date first;
+        Date last;
+        List<Date> skipped = new ArrayList<>();
+        try {
+            first = Date.valueOf(tokens[1]);
+            last = Date.valueOf(tokens[2]);
+            for (int i = 4; i < tokens.length; i++) {
+                skipped.add(Date.valueOf(tokens[i]));
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        // check 3: a non-empty range, weekdays such as Mon,Wed,Fri and skipped dates within the range
+        int weekdays = parseWeekdays(tokens[3]);
+        if (last.before(first) || weekdays == 0) {
+            System.out.println("Please try again!");
+            return;
+        }
+        for (Date d : skipped) {
+            if (d.before(first) || d.after(last)) {
+                System.out.println("Please try again!");
+                return;
+            }
+        }
+        try {
+            currentCaregiver.addAvailabilityRule(first, last, weekdays, skipped, currentSite);
+            ConnectionManager.recordWrite();
+            System.out.println("Availability rule added!");
+        } catch (SQLException e) {
+            System.out.println("Error occurred when adding availability rule");
+            e.printStackTrace();
+        }
+    }
+
+    // The AvailabilityRules bit mask of a comma separated list of weekday names such as Mon,Wed,Fri, 0 if invalid
+    private static int parseWeekdays(String weekdays) {
+        int mask = 0;
+        for (String name : weekdays.split(",")) {
+            DayOfWeek match = null;
+            for (DayOfWeek day : DayOfWeek.values()) {
+                if (name.length() >= 3 && day.name().startsWith(name.toUpperCase())) {
+                    match = day;
+                }
+            }
+            if (match == null) {
+                return 0;
+            }
+            mask |= Availability.weekdayBit(match);
+        }
+        return mask;
+    }
+
+    private static void skipAvailability(String[] tokens) {
+        // skip_availability <date>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2) {
+            System.out.println("Please try again!");
+            return;
+        }
+        try {
+            currentCaregiver.skipAvailability(Date.valueOf(tokens[1]), currentSite);
+            ConnectionManager.recordWrite();
+            System.out.println("Availability skipped!");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+        } catch (SQLException e) {
+            System.out.println("Error occurred when skipping availability");
+            e.printStackTrace();
+        }
+    }
+
     private static void cancel(String[] tokens) {
+        // cancel <appointment_id> [<request_key>]
         // check 1: login
         if (currentCaregiver == null && currentPatient == null) {
             System.out.println("Please login first");
@@ -476,7 +1245,7 @@ public class Scheduler {
         }
 
         // check 2: token length
-        if (tokens.length != 2) {
+        if (tokens.length != 2 && tokens.length != 3) {
             System.out.println("Please try again");
             return;
         }
@@ -490,102 +1259,240 @@ public class Scheduler {
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String findAppointmentQuery = "SELECT * FROM Reservations WHERE ID = ?";
-        String deleteAppointmentQuery = "DELETE FROM Reservations WHERE ID = ?";
-        String addAvailabilityQuery = "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)";
-        String updateVaccineQuery = "UPDATE Vaccines SET doses = doses + 1 WHERE name = ?";
+        String requestKey = tokens.length == 3 ? tokens[2] : newRequestKey();
+        if (!isValidRequestKey(requestKey)) {
+            System.out.println("Please try again");
+            return;
+        }
 
         try {
-            PreparedStatement findStatement = con.prepareStatement(findAppointmentQuery);
-            findStatement.setInt(1, appointmentId);
-            ResultSet resultSet = findStatement.executeQuery();
+            System.out.println(Retry.run(() -> cancelOnce(appointmentId, requestKey)));
+        } catch (Exception e) {
+            System.out.println("Please try again");
+            e.printStackTrace(); // For debugging purposes
+        }
+    }
 
-            if (!resultSet.next()) {
-                System.out.println("No appointments found");
-                return;
-            }
+    // One attempt at a cancellation, made in a single transaction; returns the message for the user.
+    // The request key is recorded with the cancellation, so a repeated request reports the first outcome.
+    private static String cancelOnce(int appointmentId, String requestKey) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(currentSite);
+        Connection con = connect(cm);
+
+        // the ownership check is part of the DELETE, which hands back the columns needed to restore capacity
+        String deleteAppointmentQuery = "DELETE FROM Reservations " + ReminderService.RECORD_CANCELLATION +
+                "OUTPUT DELETED.Time, DELETED.CaregiverID, DELETED.VaccineID, DELETED.LotID " +
+                "WHERE ID = ? AND Site = ? AND " + (currentCaregiver != null ? "CaregiverID = ?" : "PatientID = ?");
+        String findAppointmentQuery = "SELECT 1 FROM Reservations WHERE ID = ? AND Site = ?";
+        // the caregiver may have uploaded the date again since the booking, or a rule gives it back on its own,
+        // in which case there is nothing to restore
+        String addAvailabilityQuery = "DECLARE @site varchar(64) = ?, @time date = ?, @caregiver int = ?; " +
+                "INSERT INTO Availabilities (Site, Time, CaregiverID) SELECT @site, @time, @caregiver " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WITH (UPDLOCK, HOLDLOCK) " +
+                "WHERE Site = @site AND Time = @time AND CaregiverID = @caregiver) AND NOT " + Availability.RULE_PROVIDES;
+        String addCancellationQuery = "INSERT INTO Cancellations (Site, RequestKey, AppointmentID) VALUES (?, ?, ?)";
 
-            String caregiverName = resultSet.getString("CaregiverName");
-            String patientName = resultSet.getString("PatientName");
-            String vaccineName = resultSet.getString("VaccineName");
-            Date time = resultSet.getDate("Time");
+        try {
+            con.setAutoCommit(false);
 
-            // user can only cancel their own appointments
-            if (currentCaregiver != null && !caregiverName.equals(currentCaregiver.getUsername()) ||
-                    currentPatient != null && !patientName.equals(currentPatient.getUsername())) {
-                System.out.println("You can only cancel your appointments");
-                return;
+            String cancelled = findCancellation(con, appointmentId, requestKey);
+            if (cancelled != null) {
+                return cancelled;
             }
 
             // Delete the appointment
             PreparedStatement deleteStatement = con.prepareStatement(deleteAppointmentQuery);
             deleteStatement.setInt(1, appointmentId);
-            deleteStatement.executeUpdate();
+            deleteStatement.setString(2, currentSite);
+            deleteStatement.setInt(3, currentCaregiver != null
+                    ? currentCaregiver.getId()
+                    : currentPatient.getId());
+            ResultSet resultSet = deleteStatement.executeQuery();
+
+            if (!resultSet.next()) {
+                con.rollback();
+                // only the failure path needs to tell a missing appointment from someone else's
+                PreparedStatement findStatement = con.prepareStatement(findAppointmentQuery);
+                findStatement.setInt(1, appointmentId);
+                findStatement.setString(2, currentSite);
+                if (findStatement.executeQuery().next()) {
+                    // user can only cancel their own appointments
+                    return "You can only cancel your appointments";
+                }
+                return "No appointments found";
+            }
+
+            int caregiverId = resultSet.getInt("CaregiverID");
+            int vaccineId = resultSet.getInt("VaccineID");
+            int lotId = resultSet.getInt("LotID");
+            Date time = resultSet.getDate("Time");
 
             // Add the availability back for the caregiver
             PreparedStatement addAvailabilityStatement = con.prepareStatement(addAvailabilityQuery);
-            addAvailabilityStatement.setDate(1, time);
-            addAvailabilityStatement.setString(2, caregiverName);
+            addAvailabilityStatement.setString(1, currentSite);
+            addAvailabilityStatement.setDate(2, time);
+            addAvailabilityStatement.setInt(3, caregiverId);
             addAvailabilityStatement.executeUpdate();
 
-            // Add dose
-            PreparedStatement updateVaccineStatement = con.prepareStatement(updateVaccineQuery);
-            updateVaccineStatement.setString(1, vaccineName);
+            // Add dose, back to its lot unless the lot has expired
+            PreparedStatement updateVaccineStatement = con.prepareStatement(LotInventory.RETURN_DOSE);
+            updateVaccineStatement.setInt(1, lotId);
+            updateVaccineStatement.setDate(2, Date.valueOf(LocalDate.now()));
+            updateVaccineStatement.setInt(3, vaccineId);
             updateVaccineStatement.executeUpdate();
 
-            System.out.println("Appointment successfully cancelled");
-        } catch (Exception e) {
-            System.out.println("Please try again");
-            e.printStackTrace(); // For debugging purposes
+            // Remember the request
+            PreparedStatement addCancellationStatement = con.prepareStatement(addCancellationQuery);
+            addCancellationStatement.setString(1, currentSite);
+            addCancellationStatement.setString(2, requestKey);
+            addCancellationStatement.setInt(3, appointmentId);
+            addCancellationStatement.executeUpdate();
+
+            con.commit();
+            ConnectionManager.recordWrite();
+            LotInventory.forSite(currentSite).giveBack(vaccineId, lotId);
+            appointments.cancelled(currentSite, appointmentId);
+            return "Appointment successfully cancelled";
+        } catch (SQLException e) {
+            rollback(con);
+            if (isDuplicateKey(e)) {
+                // the same request committed concurrently, the Cancellations key caught it
+                String cancelled = findCancellation(con, appointmentId, requestKey);
+                if (cancelled != null) {
+                    return cancelled;
+                }
+            }
+            throw e;
         } finally {
             cm.closeConnection();
         }
     }
 
+    // The outcome of an earlier cancellation made with the request key, or null if there was none
+    private static String findCancellation(Connection con, int appointmentId, String requestKey) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(
+                "SELECT AppointmentID FROM Cancellations WHERE Site = ? AND RequestKey = ?");
+        statement.setString(1, currentSite);
+        statement.setString(2, requestKey);
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            return null;
+        }
+        if (resultSet.getInt("AppointmentID") != appointmentId) {
+            return "Request key already used, try again";
+        }
+        return "Appointment successfully cancelled";
+    }
+
+    // Request keys are chosen by the client, so only a short, plain alphabet is accepted
+    private static boolean isValidRequestKey(String requestKey) {
+        return requestKey.length() <= 64 && requestKey.matches("[A-Za-z0-9_-]+");
+    }
+
+    private static String newRequestKey() {
+        return UUID.randomUUID().toString();
+    }
+
+    // ConnectionManager reports a failed connect by returning null, as a connection error it can be retried
+    private static Connection connect(ConnectionManager cm) throws SQLException {
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("Could not connect to site " + currentSite, "08001");
+        }
+        return con;
+    }
+
+    private static void rollback(Connection con) {
+        if (con == null) {
+            return;
+        }
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     private static void addDoses(String[] tokens) {
-        // add_doses <vaccine> <number>
+        // add_doses <vaccine> <number> <lot> <expiry> [<vaccine> <number> <lot> <expiry> ...]
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
             System.out.println("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
+        // check 2: the tokens need to hold at least one (vaccine, number, lot, expiry) group after the operation name
+        if (tokens.length < 5 || tokens.length % 4 != 1) {
             System.out.println("Please try again!");
             return;
         }
-        String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
+        // a delivery may list the same lot twice, sorting also keeps concurrent restocks from deadlocking
+        Map<String, Vaccine.Delivery> deliveries = new TreeMap<>();
+        for (int i = 1; i < tokens.length; i += 4) {
+            int number;
+            Date expiry;
+            try {
+                number = Integer.parseInt(tokens[i + 1]);
+                expiry = Date.valueOf(tokens[i + 3]);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Please try again!");
+                return;
+            }
+            // check 3: positive counts of lots that have not expired yet
+            if (number <= 0 || expiry.toLocalDate().isBefore(LocalDate.now())) {
+                System.out.println("Please try again!");
+                return;
+            }
+            Vaccine.Delivery delivery = new Vaccine.Delivery(tokens[i], tokens[i + 2], expiry, number);
+            Vaccine.Delivery same = deliveries.putIfAbsent(tokens[i] + " " + tokens[i + 2], delivery);
+            if (same != null) {
+                if (!same.getExpiry().equals(expiry)) {
+                    System.out.println("Please try again!");
+                    return;
+                }
+                deliveries.put(tokens[i] + " " + tokens[i + 2], new Vaccine.Delivery(tokens[i], tokens[i + 2], expiry,
+                        same.getDoses() + number));
+            }
+        }
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            Vaccine.addDoses(currentSite, new ArrayList<>(deliveries.values()));
         } catch (SQLException e) {
             System.out.println("Error occurred when adding doses");
             e.printStackTrace();
+            return;
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
-            try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
-        } else {
-            // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
-                vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+        ConnectionManager.recordWrite();
+        System.out.println("Doses updated!");
+    }
+
+    private static void defineSeries(String[] tokens) {
+        // define_series <vaccine> <doses> <min_days> <max_days>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 5 to include all information (with the operation name)
+        if (tokens.length != 5) {
+            System.out.println("Please try again!");
+            return;
+        }
+        try {
+            int vaccineId = NameTable.vaccines(currentSite).idOf(tokens[1]);
+            if (vaccineId == -1) {
+                System.out.println("Please add doses of " + tokens[1] + " first!");
+                return;
             }
+            VaccineSeries series = new VaccineSeries.VaccineSeriesBuilder(currentSite, vaccineId,
+                    Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4])).build();
+            series.saveToDB();
+            ConnectionManager.recordWrite();
+            System.out.println("Series defined!");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please try again! " + e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Error occurred when defining the series");
+            e.printStackTrace();
         }
-        System.out.println("Doses updated!");
     }
 
     private static void showAppointments(String[] tokens) {
@@ -602,38 +1509,54 @@ public class Scheduler {
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
+        String role = currentCaregiver != null ? AppointmentCache.CAREGIVER : AppointmentCache.PATIENT;
+        String username = currentCaregiver != null ? currentCaregiver.getUsername() : currentPatient.getUsername();
+        List<String> cached = appointments.get(role, currentSite, username);
+        if (cached != null) {
+            for (String line : cached) {
+                System.out.println(line);
+            }
+            return;
+        }
+
+        // read-only, so it can be served by the replica
+        ConnectionManager cm = ConnectionManager.forSiteRead(currentSite);
         Connection con = cm.createConnection();
 
-        String caregiverQuery = "SELECT ID, VaccineName, Time, PatientName " +
-                "FROM Reservations WHERE CaregiverName = ? ORDER BY ID";
+        String caregiverQuery = "SELECT ID, VaccineID, Time, PatientID " +
+                "FROM Reservations WHERE Site = ? AND CaregiverID = ? ORDER BY ID";
 
-        String patientQuery = "SELECT ID, VaccineName, Time, CaregiverName " +
-                "FROM Reservations WHERE PatientName = ? ORDER BY ID";
+        String patientQuery = "SELECT ID, VaccineID, Time, CaregiverID " +
+                "FROM Reservations WHERE Site = ? AND PatientID = ? ORDER BY ID";
 
         try {
             PreparedStatement statement;
 
             if (currentCaregiver != null) {
                 statement = con.prepareStatement(caregiverQuery);
-                statement.setString(1, currentCaregiver.getUsername());
+                statement.setString(1, currentSite);
+                statement.setInt(2, currentCaregiver.getId());
             } else {
                 statement = con.prepareStatement(patientQuery);
-                statement.setString(1, currentPatient.getUsername());
+                statement.setString(1, currentSite);
+                statement.setInt(2, currentPatient.getId());
             }
 
             ResultSet resultSet = statement.executeQuery();
 
+            Map<Integer, String> lines = new TreeMap<>();
             while (resultSet.next()) {
                 int appointmentID = resultSet.getInt("ID");
-                String vaccineName = resultSet.getString("VaccineName");
-                String date = resultSet.getDate("Time").toString();
-                String username = currentCaregiver != null
-                        ? resultSet.getString("PatientName")
-                        : resultSet.getString("CaregiverName");
-
-                System.out.println(appointmentID + " " + vaccineName + " " + date + " " + username);
+                String vaccineName = NameTable.vaccines(currentSite).nameOf(resultSet.getInt("VaccineID"));
+                String otherUsername = currentCaregiver != null
+                        ? NameTable.PATIENTS.nameOf(resultSet.getInt("PatientID"))
+                        : NameTable.CAREGIVERS.nameOf(resultSet.getInt("CaregiverID"));
+
+                String line = AppointmentCache.line(appointmentID, vaccineName, resultSet.getDate("Time"), otherUsername);
+                lines.put(appointmentID, line);
+                System.out.println(line);
             }
+            appointments.put(role, currentSite, username, lines);
         } catch (Exception e) {
             System.out.println("Please try again");
             e.printStackTrace();
@@ -643,6 +1566,77 @@ public class Scheduler {
 
     }
 
+    private static void report(String[] tokens) {
+        // report <from> <to>
+        // check 1: reports are for clinic staff
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: token length
+        if (tokens.length != 3) {
+            System.out.println("Please try again");
+            return;
+        }
+        try {
+            Date from = Date.valueOf(tokens[1]);
+            Date to = Date.valueOf(tokens[2]);
+            UsageReport.run(currentSite, from.toLocalDate(), to.toLocalDate()).print(System.out);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date range!");
+        } catch (SQLException e) {
+            System.out.println("Please try again");
+            e.printStackTrace();
+        }
+    }
+
+    private static void export(String[] tokens) {
+        // export <directory> [full]
+        // check 1: exports are for clinic staff
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: token length, "full" ignores the watermark of the last export
+        if (tokens.length != 2 && !(tokens.length == 3 && tokens[2].equals("full"))) {
+            System.out.println("Please try again");
+            return;
+        }
+        try {
+            long rows = new ReservationExporter(currentSite, Paths.get(tokens[1])).export(tokens.length == 3);
+            if (rows == 0) {
+                System.out.println("No new reservations to export");
+            } else {
+                System.out.println("Exported " + rows + " reservations to " + tokens[1]);
+            }
+        } catch (IOException | SQLException e) {
+            System.out.println("Export failed");
+            e.printStackTrace();
+        }
+    }
+
+    private static void stats(String[] tokens) {
+        // stats
+        if (tokens.length != 1) {
+            System.out.println("Please try again");
+            return;
+        }
+        System.out.println(patientNames.getStats());
+        System.out.println(caregiverNames.getStats());
+        System.out.println(loginThrottle.getStats());
+        System.out.println(failedLogins.getStats());
+        System.out.println(sessions.getStats());
+        System.out.println(Retry.getStats());
+        System.out.println(holds.getStats());
+        System.out.println("startup: ready after " + readyMillis + " ms" +
+                (warmUpMillis == -1 ? ", no warm-up" : ", warm-up " + warmUpMillis + " ms") +
+                (firstCommandMillis == -1 ? "" : ", first command " + firstCommandMillis + " ms"));
+        System.out.println(appointments.getStats());
+        if (StatementLog.isEnabled()) {
+            System.out.println(StatementLog.getStats());
+        }
+    }
+
     private static void logout(String[] tokens) {
         // logout
         // check 1: login
@@ -657,10 +1651,15 @@ public class Scheduler {
             return;
         }
 
-        // logout the user
+        // logout the user, the session token stops working for every process
         try {
+            if (currentToken != null) {
+                sessions.revoke(currentToken);
+                currentToken = null;
+            }
             currentCaregiver = null;
             currentPatient = null;
+            ConnectionManager.resetSession();
             System.out.println("Successfully logged out");
         } catch (Exception e) {
             System.out.println("Please try again");
@@ -0,0 +1,64 @@
+package scheduler.db;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+// Deletes the rows of the default database's account tables that carry no state any more, every
+// AccountSweepMinutes (default 15), so logins never pay for the cleanup. It runs as a dedicated process,
+// never inside a scheduler session:
+//
+//   java scheduler.db.AccountSweeper
+//
+// The deletes are idempotent, a second instance only repeats them.
+public class AccountSweeper {
+    private final long intervalMillis;
+    private final FailedLogins failedLogins = FailedLogins.fromEnvironment();
+    private final SessionStore sessions = SessionStore.fromEnvironment();
+
+    private volatile String lastSweep = "none yet";
+
+    private AccountSweeper(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public static AccountSweeper fromEnvironment() {
+        String minutes = System.getenv("AccountSweepMinutes");
+        return new AccountSweeper(TimeUnit.MINUTES.toMillis(minutes == null ? 15 : Long.parseLong(minutes)));
+    }
+
+    public static void main(String[] args) {
+        AccountSweeper sweeper = fromEnvironment();
+        System.out.println("Sweeping account tables every " + TimeUnit.MILLISECONDS.toMinutes(sweeper.intervalMillis)
+                + " minutes");
+        try {
+            sweeper.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Sweeps right away and then once per interval, until interrupted
+    public void run() throws InterruptedException {
+        while (true) {
+            sweep();
+            System.out.println(getStats());
+            Thread.sleep(intervalMillis);
+        }
+    }
+
+    public String getStats() {
+        return "account sweep: " + lastSweep;
+    }
+
+    private void sweep() {
+        try {
+            int failures = failedLogins.sweepExpired();
+            int expired = sessions.sweepExpired();
+            lastSweep = failures + " ended failed login windows and " + expired + " expired sessions deleted at " +
+                    LocalDateTime.now();
+        } catch (Exception e) {
+            // the next interval sweeps again
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+
+// Watches a borrowed connection for errors that leave it unusable, so ConnectionManager closes it instead
+// of handing it back to the pool. Those are the connection exceptions (SQL state class 08) and the ones the
+// driver reports as needing a new connection. Only the connection itself is wrapped, so binds, executes and
+// row reads on its statements run unwrapped; a connection that drops during one of those fails the
+// rollback ConnectionManager sends before pooling it, or is already closed by the driver.
+class ConnectionGuard {
+    private volatile boolean broken = false;
+
+    Connection wrap(Connection con) {
+        if (con == null) {
+            return null;
+        }
+        return (Connection) Proxy.newProxyInstance(ConnectionGuard.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new Handler(con));
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    static boolean isFatal(SQLException e) {
+        for (SQLException next = e; next != null; next = next.getNextException()) {
+            if (next instanceof SQLRecoverableException || next instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+            String state = next.getSQLState();
+            if (state != null && state.startsWith("08")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class Handler implements InvocationHandler {
+        private final Connection target;
+
+        Handler(Connection target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException && isFatal((SQLException) cause)) {
+                    broken = true;
+                }
+                throw cause;
+            }
+        }
+    }
+}
@@ -3,18 +3,79 @@ package scheduler.db;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
 
+    // the site whose database also holds the accounts (Caregivers, Patients)
+    public static final String DEFAULT_SITE = "default";
+
+    // the primary takes every write; ConnectionUrl overrides the Azure url (e.g. an embedded database for local runs)
+    private static final String connectionUrl = resolveUrl("ConnectionUrl", "Server", "DBName");
+    private static final String userName = System.getenv("UserID");
+    private static final String userPass = System.getenv("Password");
+
+    // the read replica is optional, read-only commands fall back to the primary when it is not configured
+    private static final String readConnectionUrl = resolveUrl("ReadConnectionUrl", "ReadServer", "ReadDBName");
+    private static final String readUserName = envOrDefault("ReadUserID", userName);
+    private static final String readUserPass = envOrDefault("ReadPassword", userPass);
+
+    // how long reads stay on the primary after this session wrote. This is a best-effort guess at the
+    // replica's lag, not a guarantee: nothing checks that the replica has applied the commit, so a replica
+    // lagging by more than this serves reads that miss the session's own latest writes
+    private static final long assumedReplicaLagMillis = Long.parseLong(envOrDefault("AssumedReplicaLagMillis", "5000"));
+
+    // idle connections kept per endpoint
+    private static final int poolSize = Integer.parseInt(envOrDefault("PoolSize", "8"));
+    // a connection idle for longer is checked before it is handed out again
+    private static final long validateAfterMillis = 60_000;
+
+    // site -> its shard; Sites lists them, SiteUrl_<site> / SiteReadUrl_<site> point at their databases
+    // and sites without their own url share the default database
+    private static final Map<String, Shard> shards = loadShards();
+    // endpoint (url and mode) -> its idle connections
+    private static final Map<String, BlockingQueue<PooledConnection>> pools = new ConcurrentHashMap<>();
+
+    // there is a single session per process, so the time of its last write is kept statically
+    private static volatile long lastWriteMillis = 0;
+
+    private final Shard shard;
+    private final boolean readOnly;
     private Connection con = null;
+    private String poolKey = null;
+    private ConnectionGuard guard = null;
 
     public ConnectionManager() {
+        this(false);
+    }
+
+    public ConnectionManager(boolean readOnly) {
+        this(DEFAULT_SITE, readOnly);
+    }
+
+    private ConnectionManager(String site, boolean readOnly) {
+        Shard shard = shards.get(site);
+        if (shard == null) {
+            throw new IllegalArgumentException("Unknown site " + site);
+        }
+        this.shard = shard;
+        this.readOnly = readOnly;
         try {
             Class.forName(driverName);
         } catch (ClassNotFoundException e) {
@@ -22,20 +83,231 @@ public class ConnectionManager {
         }
     }
 
+    // Connection for commands that only read, served by the replica unless the session wrote recently
+    public static ConnectionManager forRead() {
+        return new ConnectionManager(true);
+    }
+
+    // Connection to the shard that holds the site's availabilities, vaccines and reservations
+    public static ConnectionManager forSite(String site) {
+        return new ConnectionManager(site, false);
+    }
+
+    public static ConnectionManager forSiteRead(String site) {
+        return new ConnectionManager(site, true);
+    }
+
+    public static Set<String> getSites() {
+        return Collections.unmodifiableSet(shards.keySet());
+    }
+
+    public static boolean isSite(String site) {
+        return shards.containsKey(site);
+    }
+
+    // Called once a write of the session has committed on the primary, never before or after a failed one
+    public static void recordWrite() {
+        lastWriteMillis = System.currentTimeMillis();
+    }
+
+    // Loads the driver and opens connections to every endpoint in parallel until each pool is full, so the
+    // first commands do not wait for connecting. Returns the number of connections opened; an endpoint that
+    // cannot be reached is left for the first command that needs it to report.
+    public static int prefill() throws InterruptedException {
+        try {
+            Class.forName(driverName);
+        } catch (ClassNotFoundException e) {
+            return 0;
+        }
+        List<Callable<Void>> opens = new ArrayList<>();
+        Set<String> endpoints = new HashSet<>();
+        for (Shard shard : shards.values()) {
+            addOpens(opens, endpoints, shard.url, userName, userPass, false);
+            addOpens(opens, endpoints, shard.readUrl, readUserName, readUserPass, true);
+        }
+        if (opens.isEmpty()) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(opens.size(), 16));
+        int opened = 0;
+        try {
+            for (Future<Void> open : executor.invokeAll(opens)) {
+                try {
+                    open.get();
+                    opened++;
+                } catch (ExecutionException e) {
+                    // reported by the first command that needs the endpoint
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return opened;
+    }
+
+    private static void addOpens(List<Callable<Void>> opens, Set<String> endpoints, String url, String user,
+                                 String pass, boolean replica) {
+        if (url == null || !endpoints.add(poolKey(url, replica))) {
+            return;
+        }
+        BlockingQueue<PooledConnection> pool = poolFor(url, replica);
+        for (int i = pool.size(); i < poolSize; i++) {
+            opens.add(() -> {
+                Connection connection = open(url, user, pass);
+                if (replica) {
+                    connection.setReadOnly(true);
+                }
+                if (!pool.offer(new PooledConnection(connection))) {
+                    connection.close();
+                }
+                return null;
+            });
+        }
+    }
+
+    // Called on logout, the next session has not written anything yet
+    public static void resetSession() {
+        lastWriteMillis = 0;
+    }
+
     public Connection createConnection() {
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            if (useReplica()) {
+                con = borrow(shard.readUrl, readUserName, readUserPass, true);
+            } else {
+                con = borrow(shard.url, userName, userPass, false);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return con;
+        // the pool keeps the raw connection; callers get it watched for fatal errors, and instrumented
+        // when the slow-statement log is on
+        guard = new ConnectionGuard();
+        return StatementLog.wrap(guard.wrap(con));
     }
 
     public void closeConnection() {
+        if (con == null) {
+            return;
+        }
         try {
-            this.con.close();
+            // a connection that lost its server (08xxx) or otherwise failed fatally is never pooled again
+            if (guard != null && guard.isBroken()) {
+                this.con.close();
+                return;
+            }
+            // hand the connection back in a clean state, or close it if it is not reusable
+            if (!con.isClosed() && !con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+            BlockingQueue<PooledConnection> pool = pools.get(poolKey);
+            if (con.isClosed() || !pool.offer(new PooledConnection(con))) {
+                this.con.close();
+            }
         } catch (SQLException e) {
             e.printStackTrace();
+            try {
+                this.con.close();
+            } catch (SQLException ignored) {
+                // already reported above
+            }
+        }
+    }
+
+    private boolean useReplica() {
+        return readOnly && shard.readUrl != null
+                && System.currentTimeMillis() - lastWriteMillis >= assumedReplicaLagMillis;
+    }
+
+    private Connection borrow(String url, String user, String pass, boolean replica) throws SQLException {
+        poolKey = poolKey(url, replica);
+        BlockingQueue<PooledConnection> pool = poolFor(url, replica);
+        PooledConnection idle;
+        while ((idle = pool.poll()) != null) {
+            if (System.currentTimeMillis() - idle.idleSince < validateAfterMillis || idle.connection.isValid(2)) {
+                return idle.connection;
+            }
+            idle.connection.close();
+        }
+        Connection connection = open(url, user, pass);
+        if (replica) {
+            connection.setReadOnly(true);
+        }
+        return connection;
+    }
+
+    private static String poolKey(String url, boolean replica) {
+        return (replica ? "read:" : "write:") + url;
+    }
+
+    private static BlockingQueue<PooledConnection> poolFor(String url, boolean replica) {
+        return pools.computeIfAbsent(poolKey(url, replica), k -> new ArrayBlockingQueue<>(poolSize));
+    }
+
+    private static Connection open(String url, String user, String pass) throws SQLException {
+        // embedded databases are usually opened without credentials
+        if (user == null) {
+            return DriverManager.getConnection(url);
+        }
+        return DriverManager.getConnection(url, user, pass);
+    }
+
+    private static Map<String, Shard> loadShards() {
+        Map<String, Shard> shards = new LinkedHashMap<>();
+        shards.put(DEFAULT_SITE, new Shard(connectionUrl, readConnectionUrl));
+        String sites = System.getenv("Sites");
+        if (sites != null) {
+            for (String site : sites.split(",")) {
+                site = site.trim();
+                if (site.isEmpty() || site.equals(DEFAULT_SITE)) {
+                    continue;
+                }
+                String url = System.getenv("SiteUrl_" + site);
+                if (url == null) {
+                    // shares the default database, its rows are told apart by the Site column
+                    shards.put(site, shards.get(DEFAULT_SITE));
+                } else {
+                    shards.put(site, new Shard(url, System.getenv("SiteReadUrl_" + site)));
+                }
+            }
+        }
+        return shards;
+    }
+
+    private static String resolveUrl(String urlVariable, String serverVariable, String databaseVariable) {
+        String url = System.getenv(urlVariable);
+        if (url != null) {
+            return url;
+        }
+        String server = System.getenv(serverVariable);
+        if (server == null) {
+            return null;
+        }
+        return "jdbc:sqlserver://" + server + ".database.windows.net:1433;database=" + System.getenv(databaseVariable);
+    }
+
+    private static String envOrDefault(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static class Shard {
+        private final String url;
+        private final String readUrl;
+
+        Shard(String url, String readUrl) {
+            this.url = url;
+            this.readUrl = readUrl;
+        }
+    }
+
+    private static class PooledConnection {
+        private final Connection connection;
+        private final long idleSince = System.currentTimeMillis();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
         }
     }
 }
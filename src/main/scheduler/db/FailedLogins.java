@@ -0,0 +1,123 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Failed password checks per account, kept in the LoginFailures table of the default database so that the limit
+// holds across every process, unlike the token buckets of LoginThrottle. An account with MaxFailedLogins failures
+// within FailedLoginWindowSeconds of the first one is locked out until that window ends; a successful login
+// clears the count. The window runs on the database clock. Each process reports at most SourceFailedLogins
+// failures per account (see LoginThrottle), so no single source can lock an account out on its own.
+public class FailedLogins {
+    private final int maxFailures;
+    private final long windowSeconds;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong lockedOut = new AtomicLong();
+
+    public FailedLogins(int maxFailures, long windowSeconds) {
+        this.maxFailures = maxFailures;
+        this.windowSeconds = windowSeconds;
+    }
+
+    // Limits taken from the environment, by default 5 failures within 15 minutes
+    public static FailedLogins fromEnvironment() {
+        String max = System.getenv("MaxFailedLogins");
+        String window = System.getenv("FailedLoginWindowSeconds");
+        return new FailedLogins(max == null ? 5 : Integer.parseInt(max),
+                window == null ? 900 : Long.parseLong(window));
+    }
+
+    // Wrong passwords against the account in its current window, 0 when there is no count to clear
+    public int countFailures(String role, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement("SELECT Failures FROM LoginFailures " +
+                    "WHERE Role = ? AND Username = ? AND WindowStart > DATEADD(second, -?, SYSUTCDATETIME())");
+            statement.setString(1, role);
+            statement.setString(2, username);
+            statement.setLong(3, windowSeconds);
+            ResultSet resultSet = statement.executeQuery();
+            return resultSet.next() ? resultSet.getInt("Failures") : 0;
+        } catch (SQLException e) {
+            throw new SQLException("Could not check failed logins: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public boolean isLockedOut(int failures) {
+        if (failures >= maxFailures) {
+            lockedOut.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // Counts a wrong password, starting a new window if the last one has ended
+    public void recordFailure(String role, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        String upsertFailure = "MERGE LoginFailures WITH (HOLDLOCK) AS f " +
+                "USING (VALUES (?, ?)) AS s (Role, Username) ON f.Role = s.Role AND f.Username = s.Username " +
+                "WHEN MATCHED AND f.WindowStart <= DATEADD(second, -?, SYSUTCDATETIME()) " +
+                "THEN UPDATE SET WindowStart = SYSUTCDATETIME(), Failures = 1 " +
+                "WHEN MATCHED THEN UPDATE SET Failures = f.Failures + 1 " +
+                "WHEN NOT MATCHED THEN INSERT (Role, Username, WindowStart, Failures) " +
+                "VALUES (s.Role, s.Username, SYSUTCDATETIME(), 1);";
+        try {
+            PreparedStatement statement = con.prepareStatement(upsertFailure);
+            statement.setString(1, role);
+            statement.setString(2, username);
+            statement.setLong(3, windowSeconds);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException("Could not record failed login: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+        recorded.incrementAndGet();
+    }
+
+    public void clear(String role, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "DELETE FROM LoginFailures WHERE Role = ? AND Username = ?");
+            statement.setString(1, role);
+            statement.setString(2, username);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException("Could not clear failed logins: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Deletes the rows of ended windows, which carry no state; guessed usernames would otherwise pile up.
+    // Run by AccountSweeper, off the login path. Returns the number of rows deleted.
+    public int sweepExpired() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "DELETE FROM LoginFailures WHERE WindowStart <= DATEADD(second, -?, SYSUTCDATETIME())");
+            statement.setLong(1, windowSeconds);
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException("Could not delete ended failed login windows: " + e.getMessage(), e.getSQLState(),
+                    e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public String getStats() {
+        return "failed logins: " + recorded.get() + " recorded, " + lockedOut.get() + " attempts locked out by this process";
+    }
+}
@@ -0,0 +1,127 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-process intern table between the names users type and the integer keys the tables are joined on.
+// Names are never renamed or deleted, so an entry stays valid for the life of the process.
+// Accounts live in the default database; vaccines are stocked per site, so each site has its own table.
+public class NameTable {
+    private static final int MAX_IN_PARAMETERS = 1000;
+
+    public static final NameTable CAREGIVERS = new NameTable("Caregivers", "Username", null);
+    public static final NameTable PATIENTS = new NameTable("Patients", "Username", null);
+    private static final Map<String, NameTable> VACCINES = new ConcurrentHashMap<>();
+
+    private final String table;
+    private final String nameColumn;
+    // null for the account tables
+    private final String site;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+
+    private NameTable(String table, String nameColumn, String site) {
+        this.table = table;
+        this.nameColumn = nameColumn;
+        this.site = site;
+    }
+
+    public static NameTable vaccines(String site) {
+        return VACCINES.computeIfAbsent(site, s -> new NameTable("Vaccines", "Name", s));
+    }
+
+    public void put(int id, String name) {
+        ids.put(name, id);
+        names.put(id, name);
+    }
+
+    // ID of the name, or -1 if there is no such row (yet)
+    public int idOf(String name) throws SQLException {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        ConnectionManager cm = connectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT ID, " + nameColumn + " FROM " + table + " WHERE " + nameColumn + " = ?" + siteFilter());
+            statement.setString(1, name);
+            if (site != null) {
+                statement.setString(2, site);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                return -1;
+            }
+            int found = resultSet.getInt(1);
+            // the collation may match a differently cased name, remember both spellings
+            put(found, resultSet.getString(2));
+            ids.put(name, found);
+            return found;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public String nameOf(int id) throws SQLException {
+        String name = names.get(id);
+        if (name != null) {
+            return name;
+        }
+        List<Integer> missing = new ArrayList<>();
+        missing.add(id);
+        preload(missing);
+        return names.get(id);
+    }
+
+    // Looks up the names of all the IDs that are not cached yet, a thousand per query
+    public void preload(Collection<Integer> idsToLoad) throws SQLException {
+        List<Integer> missing = new ArrayList<>();
+        for (Integer id : idsToLoad) {
+            if (!names.containsKey(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        ConnectionManager cm = connectionManager();
+        Connection con = cm.createConnection();
+        try {
+            for (int from = 0; from < missing.size(); from += MAX_IN_PARAMETERS) {
+                List<Integer> chunk = missing.subList(from, Math.min(missing.size(), from + MAX_IN_PARAMETERS));
+                StringBuilder query = new StringBuilder("SELECT ID, " + nameColumn + " FROM " + table + " WHERE ID IN (");
+                for (int i = 0; i < chunk.size(); i++) {
+                    query.append(i == 0 ? "?" : ", ?");
+                }
+                PreparedStatement statement = con.prepareStatement(query.append(")").toString());
+                for (int i = 0; i < chunk.size(); i++) {
+                    statement.setInt(i + 1, chunk.get(i));
+                }
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    put(resultSet.getInt(1), resultSet.getString(2));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // misses go to the primary, a name created moments ago may not have reached the replica
+    private ConnectionManager connectionManager() {
+        return site == null ? new ConnectionManager() : ConnectionManager.forSite(site);
+    }
+
+    private String siteFilter() {
+        return site == null ? "" : " AND Site = ?";
+    }
+}
@@ -0,0 +1,88 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Reruns a unit of database work that failed with a transient error (lost connection, deadlock, Azure SQL
+// throttling or failover) with exponential backoff and jitter. The work must be a whole transaction that
+// is safe to repeat, reserve and cancel are made so by their request keys.
+public class Retry {
+    private static final int maxAttempts = Integer.parseInt(envOrDefault("RetryAttempts", "5"));
+    private static final long baseDelayMillis = Long.parseLong(envOrDefault("RetryBaseMillis", "100"));
+    private static final long maxDelayMillis = 5000;
+
+    // 1205 deadlock victim; 40613 database unavailable, 40501 service busy, 40197 service error and
+    // 49918 - 49920 not enough resources are Azure SQL's transient errors
+    private static final Set<Integer> TRANSIENT_ERRORS = Set.of(1205, 40613, 40501, 40197, 49918, 49919, 49920);
+
+    private static final AtomicLong retried = new AtomicLong();
+    private static final AtomicLong exhausted = new AtomicLong();
+
+    public interface Work<T> {
+        T run() throws SQLException;
+    }
+
+    public static <T> T run(Work<T> work) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return work.run();
+            } catch (SQLException e) {
+                if (!isTransient(e)) {
+                    throw e;
+                }
+                if (attempt >= maxAttempts) {
+                    exhausted.incrementAndGet();
+                    throw e;
+                }
+                retried.incrementAndGet();
+                sleep(attempt);
+            }
+        }
+    }
+
+    // Looks through the causes and chained exceptions, the model classes wrap what the driver threw
+    public static boolean isTransient(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransientException || t instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                SQLException sql = (SQLException) t;
+                for (SQLException next = sql; next != null; next = next.getNextException()) {
+                    String state = next.getSQLState();
+                    if (state != null && (state.startsWith("08") || state.equals("40001"))) {
+                        return true;
+                    }
+                    if (TRANSIENT_ERRORS.contains(next.getErrorCode())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public static String getStats() {
+        return "retries: " + retried.get() + " transient failures retried, " + exhausted.get() + " gave up";
+    }
+
+    private static void sleep(int attempt) throws SQLException {
+        // full jitter, so clients that failed together do not come back together
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to retry", e);
+        }
+    }
+
+    private static String envOrDefault(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : value;
+    }
+}
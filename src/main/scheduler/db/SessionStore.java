@@ -0,0 +1,176 @@
+package scheduler.db;
+
+import scheduler.util.Util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Issued session tokens, kept in the Sessions table of the default database so that a client reconnecting to
+// any process can resume its session without the password hash, and logging out revokes the token everywhere.
+// Only the SHA-256 of a token is stored; tokens are 256 random bits, so the hash needs no salt.
+// Sessions expire after a fixed time to live on the database clock; AccountSweeper deletes the expired rows.
+public class SessionStore {
+    public static final String PATIENT = "patient";
+    public static final String CAREGIVER = "caregiver";
+
+    private static final int TOKEN_BYTES = 32;
+
+    private final long ttlSeconds;
+    private final SecureRandom random = new SecureRandom();
+    private final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong revoked = new AtomicLong();
+
+    public SessionStore(long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    // Time to live taken from the environment, by default sessions last 15 minutes
+    public static SessionStore fromEnvironment() {
+        String ttl = System.getenv("SessionTtlSeconds");
+        return new SessionStore(ttl == null ? 900 : Long.parseLong(ttl));
+    }
+
+    // A new token for the user, role is PATIENT or CAREGIVER
+    public String issue(String role, int userId) throws SQLException {
+        byte[] secret = new byte[TOKEN_BYTES];
+        random.nextBytes(secret);
+        String token = encoder.encodeToString(secret);
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement("INSERT INTO Sessions (TokenHash, Role, UserID, ExpiresAt) " +
+                    "VALUES (?, ?, ?, DATEADD(second, ?, SYSUTCDATETIME()))");
+            statement.setBytes(1, hash(token));
+            statement.setString(2, role);
+            statement.setInt(3, userId);
+            statement.setLong(4, ttlSeconds);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException("Could not issue session: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+        issued.incrementAndGet();
+        return token;
+    }
+
+    // The session the token was issued for, with its account read in the same query, or null if the token is
+    // unknown, expired or revoked, or the account is gone
+    public Session resume(String token) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement("SELECT s.Role, s.UserID, " +
+                    "COALESCE(p.Username, c.Username) AS Username, COALESCE(p.Salt, c.Salt) AS Salt, " +
+                    "COALESCE(p.Hash, c.Hash) AS Hash FROM Sessions s " +
+                    "LEFT JOIN Patients p ON s.Role = '" + PATIENT + "' AND p.ID = s.UserID " +
+                    "LEFT JOIN Caregivers c ON s.Role = '" + CAREGIVER + "' AND c.ID = s.UserID " +
+                    "WHERE s.TokenHash = ? AND s.ExpiresAt > SYSUTCDATETIME()");
+            statement.setBytes(1, hash(token));
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next() || resultSet.getString("Username") == null) {
+                return null;
+            }
+            resumed.incrementAndGet();
+            return new Session(resultSet.getString("Role"), resultSet.getInt("UserID"),
+                    resultSet.getString("Username"), resultSet.getBytes("Salt"), Util.trim(resultSet.getBytes("Hash")));
+        } catch (SQLException e) {
+            throw new SQLException("Could not resume session: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Makes the token unusable for every process
+    public void revoke(String token) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement("DELETE FROM Sessions WHERE TokenHash = ?");
+            statement.setBytes(1, hash(token));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException("Could not revoke session: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+        revoked.incrementAndGet();
+    }
+
+    // Deletes the expired sessions, returns how many
+    public int sweepExpired() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement("DELETE FROM Sessions WHERE ExpiresAt <= SYSUTCDATETIME()");
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException("Could not delete expired sessions: " + e.getMessage(), e.getSQLState(),
+                    e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public String getStats() {
+        return "sessions: " + issued.get() + " issued, " + resumed.get() + " resumed, " + revoked.get()
+                + " revoked by this process";
+    }
+
+    private static byte[] hash(String token) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Session {
+        private final String role;
+        private final int userId;
+        private final String username;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private Session(String role, int userId, String username, byte[] salt, byte[] hash) {
+            this.role = role;
+            this.userId = userId;
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        public String getRole() {
+            return role;
+        }
+
+        public int getUserId() {
+            return userId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public byte[] getSalt() {
+            return salt;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Slow-statement log. When SlowQueryMillis is set, the connections ConnectionManager hands out time every
+// prepare and execute, and the statements that take at least that long are appended to a rotating log
+// together with the command that ran them and their bind values. Strings and bytes are masked, since
+// they hold usernames and password hashes. Without SlowQueryMillis the raw connection is handed out.
+//
+// Log lines: "<timestamp> <command> <millis> ms <prepare|execute>[ failed][ batch=<n>] <sql> [binds]"
+public class StatementLog {
+    // -1 when the log is off
+    private static final long thresholdNanos = parseThreshold(System.getenv("SlowQueryMillis"));
+    private static final Path logFile = Paths.get(envOrDefault("SlowQueryLog", "slow_queries.log"));
+    private static final long maxBytes = Long.parseLong(envOrDefault("SlowQueryLogBytes", "10485760"));
+    // rotated files are kept as <log>.1 (newest) up to <log>.<keptFiles>
+    private static final int keptFiles = 5;
+
+    // there is a single session per process, so the running command is kept statically
+    // (and is seen by the worker threads a command starts)
+    private static volatile String command = "-";
+
+    private static final AtomicLong timed = new AtomicLong();
+    private static final AtomicLong logged = new AtomicLong();
+
+    public static boolean isEnabled() {
+        return thresholdNanos >= 0;
+    }
+
+    // Called by the command loop before each command runs
+    public static void setCommand(String name) {
+        command = name;
+    }
+
+    public static Connection wrap(Connection con) {
+        if (con == null || !isEnabled()) {
+            return con;
+        }
+        return (Connection) Proxy.newProxyInstance(StatementLog.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ConnectionHandler(con));
+    }
+
+    public static String getStats() {
+        return "slow statements: " + logged.get() + " of " + timed.get() + " logged to " + logFile;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void record(long nanos, String phase, boolean failed, int batched, String sql,
+                               Object[] binds, int bindCount) {
+        timed.incrementAndGet();
+        if (nanos < thresholdNanos) {
+            return;
+        }
+        logged.incrementAndGet();
+        StringBuilder line = new StringBuilder();
+        line.append(LocalDateTime.now()).append(' ').append(command).append(' ')
+                .append(nanos / 1_000_000).append(" ms ").append(phase);
+        if (failed) {
+            line.append(" failed");
+        }
+        if (batched > 0) {
+            line.append(" batch=").append(batched);
+        }
+        line.append(' ').append(sql == null ? "?" : sql.replaceAll("\\s+", " "));
+        if (bindCount > 0) {
+            line.append(" [");
+            for (int i = 1; i <= bindCount; i++) {
+                line.append(i == 1 ? "" : ", ").append(i).append('=').append(mask(binds[i]));
+            }
+            line.append(']');
+        }
+        write(line.append('\n').toString());
+    }
+
+    // Package-private for the tests.
+    static String mask(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        if (value instanceof String) {
+            return "'***'(" + ((String) value).length() + ")";
+        }
+        if (value instanceof byte[]) {
+            return "<" + ((byte[]) value).length + " bytes>";
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof java.util.Date) {
+            return value.toString();
+        }
+        return "<" + value.getClass().getSimpleName() + ">";
+    }
+
+    private static synchronized void write(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (Files.exists(logFile) && Files.size(logFile) + bytes.length > maxBytes) {
+                rotate();
+            }
+            Files.write(logFile, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // losing a log line must never fail the statement it describes
+            e.printStackTrace();
+        }
+    }
+
+    private static void rotate() throws IOException {
+        Files.deleteIfExists(rotated(keptFiles));
+        for (int i = keptFiles - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(logFile, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Path rotated(int index) {
+        return logFile.resolveSibling(logFile.getFileName() + "." + index);
+    }
+
+    private static long parseThreshold(String millis) {
+        return millis == null ? -1 : Long.parseLong(millis) * 1_000_000;
+    }
+
+    private static String envOrDefault(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : value;
+    }
+
+    // Times prepareStatement / prepareCall and wraps the statements the connection creates
+    private static class ConnectionHandler implements InvocationHandler {
+        private final Connection con;
+
+        ConnectionHandler(Connection con) {
+            this.con = con;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (!name.startsWith("prepare") && !name.equals("createStatement")) {
+                return StatementLog.invoke(con, method, args);
+            }
+            String sql = name.equals("createStatement") ? null : (String) args[0];
+            long start = System.nanoTime();
+            boolean failed = true;
+            Object statement;
+            try {
+                statement = StatementLog.invoke(con, method, args);
+                failed = false;
+            } finally {
+                if (sql != null) {
+                    record(System.nanoTime() - start, "prepare", failed, 0, sql, null, 0);
+                }
+            }
+            return Proxy.newProxyInstance(StatementLog.class.getClassLoader(),
+                    new Class<?>[]{method.getReturnType()}, new StatementHandler(statement, sql));
+        }
+    }
+
+    // Keeps the bind values of the statement and times its executions
+    private static class StatementHandler implements InvocationHandler {
+        private final Object statement;
+        private String sql;
+        // indexed by parameter position, slot 0 is unused
+        private Object[] binds = new Object[8];
+        private int highestBind = 0;
+        private int batched = 0;
+
+        StatementHandler(Object statement, String sql) {
+            this.statement = statement;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bind((Integer) args[0], args[1]);
+            } else if (name.equals("clearParameters")) {
+                Arrays.fill(binds, null);
+                highestBind = 0;
+            } else if (name.equals("addBatch")) {
+                batched++;
+            } else if (name.startsWith("execute")) {
+                return execute(method, args);
+            }
+            return StatementLog.invoke(statement, method, args);
+        }
+
+        private void bind(int index, Object value) {
+            if (index <= 0) {
+                return;
+            }
+            if (index >= binds.length) {
+                binds = Arrays.copyOf(binds, Math.max(index + 1, binds.length * 2));
+            }
+            binds[index] = value;
+            highestBind = Math.max(highestBind, index);
+        }
+
+        private Object execute(Method method, Object[] args) throws Throwable {
+            // a plain Statement only learns its SQL here
+            if (args != null && args.length > 0 && args[0] instanceof String) {
+                sql = (String) args[0];
+            }
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Object result = StatementLog.invoke(statement, method, args);
+                failed = false;
+                return result;
+            } finally {
+                record(System.nanoTime() - start, "execute", failed, batched, sql, binds, highestBind);
+                if (method.getName().equals("executeBatch")) {
+                    batched = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package scheduler.db;
+
+import scheduler.util.BloomFilter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// Bloom filter of the usernames in one account table, so that names which are definitely new
+// can go straight to the insert (still protected by the primary key) without a lookup first.
+public class UsernameFilter {
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    // leave room for the accounts created while the application runs
+    private static final int MIN_CAPACITY = 10000;
+
+    private final String table;
+    // null until loaded (or if loading failed), every check then goes to the database
+    private BloomFilter filter = null;
+    private int loaded = 0;
+    private long skippedLookups = 0;
+    private long lookups = 0;
+    private long falsePositives = 0;
+
+    public UsernameFilter(String table) {
+        this.table = table;
+    }
+
+    public void load() throws SQLException {
+        ConnectionManager cm = ConnectionManager.forRead();
+        Connection con = cm.createConnection();
+
+        try {
+            ResultSet countResult = con.prepareStatement("SELECT COUNT(*) FROM " + table).executeQuery();
+            countResult.next();
+            int count = countResult.getInt(1);
+
+            BloomFilter names = new BloomFilter(Math.max(MIN_CAPACITY, count * 2), FALSE_POSITIVE_RATE);
+            PreparedStatement statement = con.prepareStatement("SELECT Username FROM " + table);
+            statement.setFetchSize(10000);
+            ResultSet resultSet = statement.executeQuery();
+            int added = 0;
+            while (resultSet.next()) {
+                names.add(resultSet.getString("Username"));
+                added++;
+            }
+            this.filter = names;
+            this.loaded = added;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // true when the username has certainly never been created, so the lookup can be skipped
+    public boolean isDefinitelyNew(String username) {
+        if (filter == null) {
+            return false;
+        }
+        if (!filter.mightContain(username)) {
+            skippedLookups++;
+            return true;
+        }
+        lookups++;
+        return false;
+    }
+
+    // result of the lookup that followed a "maybe taken" answer
+    public void recordLookup(boolean exists) {
+        if (!exists && filter != null) {
+            falsePositives++;
+        }
+    }
+
+    public void add(String username) {
+        if (filter != null) {
+            filter.add(username);
+        }
+    }
+
+    public String getStats() {
+        if (filter == null) {
+            return table + ": filter not loaded, every check queries the database";
+        }
+        long checks = skippedLookups + lookups;
+        long newNames = skippedLookups + falsePositives;
+        return String.format("%s: %d names loaded, %d KiB, %d hashes, expected false-positive rate %.3f%%, " +
+                        "%d of %d checks skipped the lookup, observed false-positive rate %.3f%%",
+                table, loaded, filter.memoryBytes() / 1024, filter.getNumHashes(),
+                filter.expectedFalsePositiveRate() * 100, skippedLookups, checks,
+                newNames == 0 ? 0.0 : falsePositives * 100.0 / newNames);
+    }
+}
@@ -0,0 +1,257 @@
+package scheduler.hold;
+
+import scheduler.db.NameTable;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Tentative claims on a caregiver and a dose, kept in the Holds table of the site's shard so that the holds of
+// every session count, whichever process placed them. A pending hold takes no locks on availabilities or stock:
+// bookings and searches skip the caregivers and doses held by other patients, and a hold stops counting once
+// its ExpiresAt (on the database clock) passes. Expired rows are deleted by the next hold placed at the site.
+// Each patient has at most one hold per site, placing another one replaces it.
+public class HoldTable {
+    private final long ttlSeconds;
+    private final int maxHolds;
+
+    private final AtomicLong placed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public HoldTable(long ttlSeconds, int maxHolds) {
+        this.ttlSeconds = ttlSeconds;
+        this.maxHolds = maxHolds;
+    }
+
+    // Limits taken from the environment, by default holds last 2 minutes and at most 10000 are pending per site
+    public static HoldTable fromEnvironment() {
+        String ttl = System.getenv("HoldTtlSeconds");
+        String max = System.getenv("MaxHolds");
+        return new HoldTable(ttl == null ? 120 : Long.parseLong(ttl), max == null ? 10000 : Integer.parseInt(max));
+    }
+
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    // Places the patient's hold in the caller's transaction on the site's shard, replacing their previous one;
+    // null when the site has too many pending holds. Another patient holding the caregiver on the date at the
+    // same time fails the insert with a duplicate key.
+    public Hold place(Connection con, int patientId, String site, Date time, int caregiverId, String vaccineName,
+                      int vaccineId) throws SQLException {
+        PreparedStatement delete = con.prepareStatement(
+                "DELETE FROM Holds WHERE Site = ? AND (PatientID = ? OR ExpiresAt <= SYSUTCDATETIME())");
+        delete.setString(1, site);
+        delete.setInt(2, patientId);
+        delete.executeUpdate();
+
+        PreparedStatement count = con.prepareStatement("SELECT COUNT(*) FROM Holds WHERE Site = ?");
+        count.setString(1, site);
+        ResultSet pending = count.executeQuery();
+        if (pending.next() && pending.getInt(1) >= maxHolds) {
+            rejected.incrementAndGet();
+            return null;
+        }
+
+        Hold hold = new Hold(patientId, site, time, caregiverId, vaccineName, vaccineId,
+                UUID.randomUUID().toString());
+        PreparedStatement insert = con.prepareStatement("INSERT INTO Holds " +
+                "(Site, PatientID, Time, CaregiverID, VaccineID, RequestKey, ExpiresAt) " +
+                "VALUES (?, ?, ?, ?, ?, ?, DATEADD(second, ?, SYSUTCDATETIME()))");
+        insert.setString(1, site);
+        insert.setInt(2, patientId);
+        insert.setDate(3, time);
+        insert.setInt(4, caregiverId);
+        insert.setInt(5, vaccineId);
+        insert.setString(6, hold.requestKey);
+        insert.setLong(7, ttlSeconds);
+        insert.executeUpdate();
+        placed.incrementAndGet();
+        return hold;
+    }
+
+    // The patient's hold at the site if it has not expired yet
+    public Hold get(Connection con, int patientId, String site) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("SELECT Time, CaregiverID, VaccineID, RequestKey " +
+                "FROM Holds WHERE Site = ? AND PatientID = ? AND ExpiresAt > SYSUTCDATETIME()");
+        statement.setString(1, site);
+        statement.setInt(2, patientId);
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            return null;
+        }
+        int vaccineId = resultSet.getInt("VaccineID");
+        return new Hold(patientId, site, resultSet.getDate("Time"), resultSet.getInt("CaregiverID"),
+                NameTable.vaccines(site).nameOf(vaccineId), vaccineId, resultSet.getString("RequestKey"));
+    }
+
+    // Drops the patient's hold at the site, if any, in the caller's transaction; booking consumes it this way
+    public void release(Connection con, int patientId, String site) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("DELETE FROM Holds WHERE Site = ? AND PatientID = ?");
+        statement.setString(1, site);
+        statement.setInt(2, patientId);
+        statement.executeUpdate();
+    }
+
+    // Caregivers held on the date by patients other than patientId (-1 counts every hold)
+    public Set<Integer> heldCaregivers(Connection con, String site, Date time, int patientId) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("SELECT CaregiverID FROM Holds " +
+                "WHERE Site = ? AND Time = ? AND PatientID <> ? AND ExpiresAt > SYSUTCDATETIME()");
+        statement.setString(1, site);
+        statement.setDate(2, time);
+        statement.setInt(3, patientId);
+        ResultSet resultSet = statement.executeQuery();
+        Set<Integer> caregivers = new HashSet<>();
+        while (resultSet.next()) {
+            caregivers.add(resultSet.getInt(1));
+        }
+        return caregivers;
+    }
+
+    // Caregivers held on each date from first to last by patients other than patientId, for a booking that
+    // takes several dates at once
+    public Map<LocalDate, Set<Integer>> heldCaregivers(Connection con, String site, Date first, Date last,
+                                                        int patientId) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("SELECT Time, CaregiverID FROM Holds " +
+                "WHERE Site = ? AND Time BETWEEN ? AND ? AND PatientID <> ? AND ExpiresAt > SYSUTCDATETIME()");
+        statement.setString(1, site);
+        statement.setDate(2, first);
+        statement.setDate(3, last);
+        statement.setInt(4, patientId);
+        ResultSet resultSet = statement.executeQuery();
+        Map<LocalDate, Set<Integer>> held = new HashMap<>();
+        while (resultSet.next()) {
+            held.computeIfAbsent(resultSet.getDate("Time").toLocalDate(), k -> new HashSet<>())
+                    .add(resultSet.getInt("CaregiverID"));
+        }
+        return held;
+    }
+
+    // The caregivers, in their order, without the held ones
+    public static int[] withoutHeld(int[] caregivers, Set<Integer> held) {
+        if (held == null || held.isEmpty()) {
+            return caregivers;
+        }
+        int[] free = new int[caregivers.length];
+        int count = 0;
+        for (int caregiver : caregivers) {
+            if (!held.contains(caregiver)) {
+                free[count++] = caregiver;
+            }
+        }
+        return Arrays.copyOf(free, count);
+    }
+
+    // Doses of the vaccine held by patients other than patientId (-1 counts every hold)
+    public int heldDoses(Connection con, String site, int vaccineId, int patientId) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("SELECT COUNT(*) FROM Holds " +
+                "WHERE Site = ? AND VaccineID = ? AND PatientID <> ? AND ExpiresAt > SYSUTCDATETIME()");
+        statement.setString(1, site);
+        statement.setInt(2, vaccineId);
+        statement.setInt(3, patientId);
+        ResultSet resultSet = statement.executeQuery();
+        return resultSet.next() ? resultSet.getInt(1) : 0;
+    }
+
+    // Every unexpired hold of the site by patient, for a booking that takes slots for many patients at once;
+    // there are at most maxHolds of them
+    public Map<Integer, Hold> pending(Connection con, String site) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("SELECT PatientID, Time, CaregiverID, VaccineID, " +
+                "RequestKey FROM Holds WHERE Site = ? AND ExpiresAt > SYSUTCDATETIME()");
+        statement.setString(1, site);
+        ResultSet resultSet = statement.executeQuery();
+        List<Hold> read = new ArrayList<>();
+        Set<Integer> vaccineIds = new HashSet<>();
+        while (resultSet.next()) {
+            int vaccineId = resultSet.getInt("VaccineID");
+            read.add(new Hold(resultSet.getInt("PatientID"), site, resultSet.getDate("Time"),
+                    resultSet.getInt("CaregiverID"), null, vaccineId, resultSet.getString("RequestKey")));
+            vaccineIds.add(vaccineId);
+        }
+        // the vaccine names in one query rather than one per hold
+        NameTable.vaccines(site).preload(vaccineIds);
+        Map<Integer, Hold> pending = new HashMap<>();
+        for (Hold hold : read) {
+            pending.put(hold.patientId, new Hold(hold.patientId, site, hold.time, hold.caregiverId,
+                    NameTable.vaccines(site).nameOf(hold.vaccineId), hold.vaccineId, hold.requestKey));
+        }
+        return pending;
+    }
+
+    // Drops the holds of the patients at the site in the caller's transaction, consumed by a bulk booking
+    public void release(Connection con, Set<Integer> patientIds, String site) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("DELETE FROM Holds WHERE Site = ? AND PatientID = ?");
+        for (int patientId : patientIds) {
+            statement.setString(1, site);
+            statement.setInt(2, patientId);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    public String getStats() {
+        return "holds: " + placed.get() + " placed, " + rejected.get() + " rejected by this process";
+    }
+
+    public static class Hold {
+        private final int patientId;
+        private final String site;
+        private final Date time;
+        private final int caregiverId;
+        private final String vaccineName;
+        private final int vaccineId;
+        // confirming a hold is retried safely under this key
+        private final String requestKey;
+
+        private Hold(int patientId, String site, Date time, int caregiverId, String vaccineName, int vaccineId,
+                     String requestKey) {
+            this.patientId = patientId;
+            this.site = site;
+            this.time = time;
+            this.caregiverId = caregiverId;
+            this.vaccineName = vaccineName;
+            this.vaccineId = vaccineId;
+            this.requestKey = requestKey;
+        }
+
+        public int getPatientId() {
+            return patientId;
+        }
+
+        public String getSite() {
+            return site;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+
+        public int getCaregiverId() {
+            return caregiverId;
+        }
+
+        public String getVaccineName() {
+            return vaccineName;
+        }
+
+        public int getVaccineId() {
+            return vaccineId;
+        }
+
+        public String getRequestKey() {
+            return requestKey;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package scheduler.inventory;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-memory view of a site's vaccine lots, so bookings pick the lot to draw from without querying for it.
+// Each vaccine keeps its lots with doses left in expiry order, and a booking takes the earliest-expiring lot
+// that is still good on the appointment date. The lots are read once per site; a vaccine whose lots changed
+// behind this view (restock, sweep, a stale guess caught by the database) is re-read on its next use.
+//
+// Vaccines.Doses stays the total of the vaccine's unexpired lots, so every reader of the stock is unchanged.
+public class LotInventory {
+    // raised by TAKE_DOSES when a lot has fewer doses than this view thought
+    public static final int STALE_LOT = 51000;
+
+    // Takes doses from a lot and from the vaccine's total in one round trip; parameters: doses, lot ID, vaccine ID
+    public static final String TAKE_DOSES = "DECLARE @n int = ?, @lot int = ?, @vaccine int = ?; " +
+            "UPDATE VaccineLots SET Doses = Doses - @n WHERE ID = @lot AND Doses >= @n; " +
+            "IF @@ROWCOUNT = 0 THROW " + STALE_LOT + ", 'Lot is out of stock', 1; " +
+            "UPDATE Vaccines SET Doses = Doses - @n WHERE ID = @vaccine;";
+
+    // Returns a dose to its lot and to the vaccine's total, unless the lot has expired;
+    // parameters: lot ID, today, vaccine ID
+    public static final String RETURN_DOSE = "DECLARE @lot int = ?, @today date = ?, @vaccine int = ?; " +
+            "UPDATE VaccineLots SET Doses = Doses + 1 WHERE ID = @lot AND Expiry >= @today; " +
+            "IF @@ROWCOUNT > 0 UPDATE Vaccines SET Doses = Doses + 1 WHERE ID = @vaccine;";
+
+    private static final Map<String, LotInventory> SITES = new ConcurrentHashMap<>();
+
+    private final String site;
+    private boolean loaded = false;
+    // vaccine ID -> its lots with doses left, earliest expiry first
+    private final Map<Integer, TreeSet<Lot>> byVaccine = new HashMap<>();
+    // lot ID -> lot, including the ones that ran out
+    private final Map<Integer, Lot> byId = new HashMap<>();
+    // vaccines to re-read before their next allocation
+    private final Set<Integer> stale = new HashSet<>();
+
+    private LotInventory(String site) {
+        this.site = site;
+    }
+
+    public static LotInventory forSite(String site) {
+        return SITES.computeIfAbsent(site, LotInventory::new);
+    }
+
+    public static boolean isStale(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException && ((SQLException) t).getErrorCode() == STALE_LOT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Takes a dose from the earliest-expiring lot still good on the date and returns the lot ID, or -1 if
+    // there is none. con is the caller's connection to the site's shard, used when lots must be read.
+    // A miss on lots that were not just read re-reads the vaccine once before giving up, since a restock by
+    // another process only reaches this view through the database.
+    // The dose is taken from the in-memory count right away; a caller whose transaction does not commit
+    // calls invalidate so the vaccine is re-read.
+    public synchronized int take(Connection con, int vaccineId, LocalDate on) throws SQLException {
+        boolean fresh = false;
+        if (!loaded) {
+            load(con, null);
+            loaded = true;
+            fresh = true;
+        } else if (stale.remove(vaccineId)) {
+            load(con, vaccineId);
+            fresh = true;
+        }
+        Lot lot = earliest(vaccineId, on);
+        if (lot == null && !fresh) {
+            load(con, vaccineId);
+            lot = earliest(vaccineId, on);
+        }
+        if (lot == null) {
+            return -1;
+        }
+        if (--lot.doses == 0) {
+            byVaccine.get(vaccineId).remove(lot);
+        }
+        return lot.id;
+    }
+
+    // Returns a dose of a cancelled appointment to its lot, unless the lot has expired meanwhile
+    public synchronized void giveBack(int vaccineId, int lotId) {
+        Lot lot = byId.get(lotId);
+        if (lot == null) {
+            stale.add(vaccineId);
+            return;
+        }
+        if (lot.expiry.isBefore(LocalDate.now())) {
+            return;
+        }
+        if (lot.doses++ == 0) {
+            byVaccine.computeIfAbsent(vaccineId, k -> newLotSet()).add(lot);
+        }
+    }
+
+    public synchronized void invalidate(int vaccineId) {
+        stale.add(vaccineId);
+    }
+
+    public synchronized void invalidateAll() {
+        loaded = false;
+    }
+
+    // Adds a lot as if it had been read. Package-private for the tests.
+    synchronized void put(int lotId, int vaccineId, LocalDate expiry, int doses) {
+        Lot lot = new Lot(lotId, vaccineId, expiry, doses);
+        byId.put(lot.id, lot);
+        byVaccine.computeIfAbsent(vaccineId, k -> newLotSet()).add(lot);
+        loaded = true;
+    }
+
+    // The earliest-expiring lot of the vaccine with doses left that is still good on the date
+    private Lot earliest(int vaccineId, LocalDate on) {
+        TreeSet<Lot> lots = byVaccine.get(vaccineId);
+        return lots == null ? null : lots.ceiling(new Lot(-1, vaccineId, on, 0));
+    }
+
+    // Reads the unexpired lots with doses left of the site, or of one vaccine
+    private void load(Connection con, Integer vaccineId) throws SQLException {
+        String query = "SELECT l.ID, l.VaccineID, l.Expiry, l.Doses FROM VaccineLots l " +
+                "JOIN Vaccines v ON v.ID = l.VaccineID WHERE v.Site = ? AND l.Doses > 0 AND l.Expiry >= ?" +
+                (vaccineId == null ? "" : " AND l.VaccineID = ?");
+        PreparedStatement statement = con.prepareStatement(query);
+        statement.setString(1, site);
+        statement.setDate(2, Date.valueOf(LocalDate.now()));
+        if (vaccineId != null) {
+            statement.setInt(3, vaccineId);
+            byVaccine.remove(vaccineId);
+            byId.values().removeIf(lot -> lot.vaccineId == vaccineId);
+        } else {
+            byVaccine.clear();
+            byId.clear();
+            stale.clear();
+        }
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+            Lot lot = new Lot(resultSet.getInt(1), resultSet.getInt(2), resultSet.getDate(3).toLocalDate(),
+                    resultSet.getInt(4));
+            byId.put(lot.id, lot);
+            byVaccine.computeIfAbsent(lot.vaccineId, k -> newLotSet()).add(lot);
+        }
+    }
+
+    private static TreeSet<Lot> newLotSet() {
+        return new TreeSet<>(Comparator.comparing((Lot lot) -> lot.expiry).thenComparingInt(lot -> lot.id));
+    }
+
+    // Retires the expired lots of the site: their remaining doses leave Vaccines.Doses and the lots are
+    // emptied (kept, reservations refer to them). Returns the number of doses retired, 0 when another
+    // process is sweeping the site. The vaccines are locked before their lots, in the order bookings take
+    // them, so a sweep and a booking cannot deadlock.
+    public static int sweepExpired(String site) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+
+        Date today = Date.valueOf(LocalDate.now());
+        String sweepLock = "SET NOCOUNT ON; DECLARE @result int; " +
+                "EXEC @result = sp_getapplock @Resource = ?, @LockMode = 'Exclusive', @LockOwner = 'Transaction', " +
+                "@LockTimeout = 0; SELECT @result";
+        String lockVaccines = "SELECT v.ID FROM Vaccines v WITH (UPDLOCK, HOLDLOCK) WHERE v.Site = ? AND EXISTS " +
+                "(SELECT 1 FROM VaccineLots l WHERE l.VaccineID = v.ID AND l.Expiry < ? AND l.Doses > 0)";
+        String retireStock = "UPDATE v SET Doses = v.Doses - x.Expired FROM Vaccines v JOIN " +
+                "(SELECT l.VaccineID, SUM(l.Doses) AS Expired FROM VaccineLots l WITH (UPDLOCK, HOLDLOCK) " +
+                "JOIN Vaccines s ON s.ID = l.VaccineID WHERE s.Site = ? AND l.Expiry < ? AND l.Doses > 0 " +
+                "GROUP BY l.VaccineID) x ON x.VaccineID = v.ID";
+        String emptyLots = "UPDATE l SET Doses = 0 OUTPUT DELETED.Doses FROM VaccineLots l " +
+                "JOIN Vaccines v ON v.ID = l.VaccineID WHERE v.Site = ? AND l.Expiry < ? AND l.Doses > 0";
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement lock = con.prepareStatement(sweepLock);
+            lock.setString(1, "lot-sweep:" + site);
+            ResultSet granted = lock.executeQuery();
+            if (!granted.next() || granted.getInt(1) < 0) {
+                con.rollback();
+                return 0;
+            }
+
+            PreparedStatement vaccines = con.prepareStatement(lockVaccines);
+            vaccines.setString(1, site);
+            vaccines.setDate(2, today);
+            if (!vaccines.executeQuery().next()) {
+                con.commit();
+                return 0;
+            }
+
+            PreparedStatement retire = con.prepareStatement(retireStock);
+            retire.setString(1, site);
+            retire.setDate(2, today);
+            retire.executeUpdate();
+
+            PreparedStatement empty = con.prepareStatement(emptyLots);
+            empty.setString(1, site);
+            empty.setDate(2, today);
+            ResultSet resultSet = empty.executeQuery();
+            int retired = 0;
+            while (resultSet.next()) {
+                retired += resultSet.getInt(1);
+            }
+            con.commit();
+            forSite(site).invalidateAll();
+            return retired;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static class Lot {
+        private final int id;
+        private final int vaccineId;
+        private final LocalDate expiry;
+        private int doses;
+
+        Lot(int id, int vaccineId, LocalDate expiry, int doses) {
+            this.id = id;
+            this.vaccineId = vaccineId;
+            this.expiry = expiry;
+            this.doses = doses;
+        }
+    }
+}
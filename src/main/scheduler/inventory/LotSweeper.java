@@ -0,0 +1,70 @@
+package scheduler.inventory;
+
+import scheduler.db.ConnectionManager;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+// Retires the expired vaccine lots of every site once a night, at LotSweepHour (default 1 a.m.).
+// It runs as a dedicated process, never inside a scheduler session:
+//
+//   java scheduler.inventory.LotSweeper
+//
+// Each site's sweep also takes an application lock on the site's shard, so a second instance started by
+// mistake skips a site that is being swept instead of sweeping it concurrently.
+public class LotSweeper {
+    private final int hour;
+
+    private volatile String lastSweep = "none yet";
+
+    private LotSweeper(int hour) {
+        this.hour = hour;
+    }
+
+    public static LotSweeper fromEnvironment() {
+        String hour = System.getenv("LotSweepHour");
+        return new LotSweeper(hour == null ? 1 : Integer.parseInt(hour));
+    }
+
+    public static void main(String[] args) {
+        LotSweeper sweeper = fromEnvironment();
+        System.out.println("Sweeping expired lots of " + ConnectionManager.getSites() + " daily at " +
+                sweeper.hour + ":00");
+        try {
+            sweeper.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Sweeps every site at the configured hour, each day, until interrupted
+    public void run() throws InterruptedException {
+        while (true) {
+            LocalDateTime now = LocalDateTime.now();
+            LocalDateTime next = now.toLocalDate().atTime(hour, 0);
+            if (!next.isAfter(now)) {
+                next = next.plusDays(1);
+            }
+            Thread.sleep(Duration.between(now, next).toMillis());
+            sweep();
+            System.out.println(getStats());
+        }
+    }
+
+    public String getStats() {
+        return "lot sweep: " + lastSweep;
+    }
+
+    private void sweep() {
+        int retired = 0;
+        for (String site : ConnectionManager.getSites()) {
+            try {
+                retired += LotInventory.sweepExpired(site);
+            } catch (Exception e) {
+                // the next night sweeps the site again
+                e.printStackTrace();
+            }
+        }
+        lastSweep = retired + " expired doses retired at " + LocalDateTime.now();
+    }
+}
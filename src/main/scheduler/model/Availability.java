@@ -0,0 +1,185 @@
+package scheduler.model;
+
+import scheduler.db.NameTable;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// A caregiver is available on a date through a one-off row in Availabilities, or through a recurring rule in
+// AvailabilityRules (weekdays within a date range) unless AvailabilityExceptions takes the date out.
+// Rules are expanded here, for the dates being looked at, so only one-off and overridden dates have rows.
+public class Availability {
+
+    // True when a rule gives the caregiver the date and no exception takes it out;
+    // expects @site, @time and @caregiver to be declared. 1900-01-01 was a Monday, Monday is bit 0.
+    public static final String RULE_PROVIDES = "(EXISTS (SELECT 1 FROM AvailabilityRules r " +
+            "WHERE r.Site = @site AND r.CaregiverID = @caregiver AND @time BETWEEN r.FirstDate AND r.LastDate " +
+            "AND r.Weekdays & POWER(2, DATEDIFF(day, '19000101', @time) % 7) <> 0) " +
+            "AND NOT EXISTS (SELECT 1 FROM AvailabilityExceptions x " +
+            "WHERE x.Site = @site AND x.Time = @time AND x.CaregiverID = @caregiver))";
+
+    // Takes the caregiver-day application lock and tells whether the caregiver is still free on the date;
+    // parameters: site, date, caregiver ID, lock resource
+    private static final String LOCK_CAREGIVER_DAY = "SET NOCOUNT ON; " +
+            "DECLARE @site varchar(64) = ?, @time date = ?, @caregiver int = ?, @result int; " +
+            "EXEC @result = sp_getapplock @Resource = ?, @LockMode = 'Exclusive', @LockOwner = 'Transaction'; " +
+            "SELECT CASE WHEN @result >= 0 AND NOT EXISTS (SELECT 1 FROM Reservations " +
+            "WHERE Site = @site AND Time = @time AND CaregiverID = @caregiver) AND (EXISTS (SELECT 1 FROM Availabilities " +
+            "WHERE Site = @site AND Time = @time AND CaregiverID = @caregiver) OR " + RULE_PROVIDES + ") THEN 1 ELSE 0 END";
+
+    // The bit of the weekday in AvailabilityRules.Weekdays
+    public static int weekdayBit(DayOfWeek day) {
+        return 1 << (day.getValue() - 1);
+    }
+
+    // IDs of the caregivers available at the site on the date who are not booked yet, in username order.
+    // con must be a connection to the site's shard. Nothing is locked, a booking locks the caregiver-day it
+    // picks with lockCaregiverDay.
+    public static int[] freeCaregivers(Connection con, String site, Date d) throws SQLException {
+        int[] free = freeCaregivers(con, site, d, d).get(d.toLocalDate());
+        return free == null ? new int[0] : free;
+    }
+
+    // The same for every date from first to last, read in one query; dates without a free caregiver are left out
+    public static TreeMap<LocalDate, int[]> freeCaregivers(Connection con, String site, Date first, Date last)
+            throws SQLException {
+        Map<LocalDate, List<Integer>> byDate = freeSlots(con, site, first, last);
+        Set<Integer> all = new HashSet<>();
+        for (List<Integer> caregivers : byDate.values()) {
+            all.addAll(caregivers);
+        }
+        // the accounts live in the default database, so the usernames come from the intern table
+        NameTable.CAREGIVERS.preload(all);
+        Map<Integer, String> names = new HashMap<>();
+        for (int caregiver : all) {
+            String name = NameTable.CAREGIVERS.nameOf(caregiver);
+            if (name != null) {
+                names.put(caregiver, name);
+            }
+        }
+
+        TreeMap<LocalDate, int[]> calendar = new TreeMap<>();
+        for (Map.Entry<LocalDate, List<Integer>> entry : byDate.entrySet()) {
+            List<Integer> caregivers = entry.getValue();
+            // a caregiver whose account cannot be read (deleted, or the default database is unreachable)
+            // cannot be shown or booked by name, so it is left out rather than sorted as null
+            caregivers.removeIf(caregiver -> !names.containsKey(caregiver));
+            if (caregivers.isEmpty()) {
+                continue;
+            }
+            caregivers.sort(Comparator.comparing(names::get));
+            int[] sorted = new int[caregivers.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = caregivers.get(i);
+            }
+            calendar.put(entry.getKey(), sorted);
+        }
+        return calendar;
+    }
+
+    // The free caregivers of every date from first to last, in no particular order and without names.
+    // One query reads the one-off rows that are not booked, the rules overlapping the range and the
+    // exceptions and bookings on the dates the rules give.
+    public static Map<LocalDate, List<Integer>> freeSlots(Connection con, String site, Date first, Date last)
+            throws SQLException {
+        String freeSlots = "SELECT 'R', r.FirstDate, r.CaregiverID, r.LastDate, r.Weekdays FROM AvailabilityRules r " +
+                "WHERE r.Site = ? AND r.FirstDate <= ? AND r.LastDate >= ? " +
+                "UNION ALL SELECT 'A', a.Time, a.CaregiverID, NULL, NULL FROM Availabilities a " +
+                "WHERE a.Site = ? AND a.Time BETWEEN ? AND ? AND NOT EXISTS " +
+                "(SELECT 1 FROM Reservations b WHERE b.Site = a.Site AND b.Time = a.Time AND b.CaregiverID = a.CaregiverID) " +
+                "UNION ALL SELECT 'X', x.Time, x.CaregiverID, NULL, NULL FROM AvailabilityExceptions x " +
+                "WHERE x.Site = ? AND x.Time BETWEEN ? AND ? " +
+                "UNION ALL SELECT 'B', b.Time, b.CaregiverID, NULL, NULL FROM Reservations b " +
+                "WHERE b.Site = ? AND b.Time BETWEEN ? AND ? AND EXISTS (SELECT 1 FROM AvailabilityRules r " +
+                "WHERE r.Site = b.Site AND r.CaregiverID = b.CaregiverID AND b.Time BETWEEN r.FirstDate AND r.LastDate)";
+        PreparedStatement statement = con.prepareStatement(freeSlots);
+        statement.setString(1, site);
+        statement.setDate(2, last);
+        statement.setDate(3, first);
+        for (int index = 4; index <= 10; index += 3) {
+            statement.setString(index, site);
+            statement.setDate(index + 1, first);
+            statement.setDate(index + 2, last);
+        }
+        ResultSet resultSet = statement.executeQuery();
+
+        Map<LocalDate, Set<Integer>> free = new HashMap<>();
+        Map<LocalDate, Set<Integer>> byRule = new HashMap<>();
+        Set<String> takenOut = new HashSet<>();
+        while (resultSet.next()) {
+            String kind = resultSet.getString(1);
+            LocalDate day = resultSet.getDate(2).toLocalDate();
+            int caregiver = resultSet.getInt(3);
+            if (kind.equals("R")) {
+                expand(byRule, caregiver, max(day, first.toLocalDate()),
+                        min(resultSet.getDate(4).toLocalDate(), last.toLocalDate()), resultSet.getInt(5));
+            } else if (kind.equals("A")) {
+                free.computeIfAbsent(day, k -> new LinkedHashSet<>()).add(caregiver);
+            } else {
+                takenOut.add(day + " " + caregiver);
+            }
+        }
+
+        Map<LocalDate, List<Integer>> byDate = new HashMap<>();
+        for (Map.Entry<LocalDate, Set<Integer>> entry : byRule.entrySet()) {
+            for (int caregiver : entry.getValue()) {
+                if (!takenOut.contains(entry.getKey() + " " + caregiver)) {
+                    free.computeIfAbsent(entry.getKey(), k -> new LinkedHashSet<>()).add(caregiver);
+                }
+            }
+        }
+        for (Map.Entry<LocalDate, Set<Integer>> entry : free.entrySet()) {
+            byDate.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return byDate;
+    }
+
+    // Locks the caregiver's day at the site until the caller's transaction ends. It is the only lock a
+    // booking takes on availability, so bookings of other caregivers or days never wait for it; a caregiver
+    // skipping the day takes it too. Returns false when, with the lock held, the caregiver turns out to be
+    // booked or no longer available on the date, and the booking has to be planned again.
+    // UX_Reservations_CaregiverDay remains the backstop against a double booking.
+    // A transaction locking several days locks them in date and caregiver ID order.
+    public static boolean lockCaregiverDay(Connection con, String site, Date d, int caregiverId) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(LOCK_CAREGIVER_DAY);
+        statement.setString(1, site);
+        statement.setDate(2, d);
+        statement.setInt(3, caregiverId);
+        statement.setString(4, "caregiver-day:" + site + ":" + d + ":" + caregiverId);
+        ResultSet resultSet = statement.executeQuery();
+        return resultSet.next() && resultSet.getInt(1) == 1;
+    }
+
+    // Adds the caregiver to every date from from to to that falls on one of the rule's weekdays.
+    // Package-private for the tests.
+    static void expand(Map<LocalDate, Set<Integer>> byRule, int caregiver, LocalDate from, LocalDate to,
+                       int weekdays) {
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            if ((weekdays & weekdayBit(day.getDayOfWeek())) != 0) {
+                byRule.computeIfAbsent(day, k -> new LinkedHashSet<>()).add(caregiver);
+            }
+        }
+    }
+
+    private static LocalDate max(LocalDate a, LocalDate b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private static LocalDate min(LocalDate a, LocalDate b) {
+        return a.isBefore(b) ? a : b;
+    }
+}
@@ -0,0 +1,453 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.NameTable;
+import scheduler.hold.HoldTable;
+import scheduler.inventory.LotInventory;
+import scheduler.reminder.ReminderService;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+public class BulkReservation {
+    // SQL Server accepts at most 2100 parameters per statement
+    private static final int MAX_IN_PARAMETERS = 1000;
+    private static final int INSERT_ROWS_PER_STATEMENT = 250;
+
+    private final String site;
+    private final List<Row> rows;
+    private final HoldTable holds;
+    // each row is booked under "<request key>:<row index>", so a rerun finds what an earlier run committed;
+    // client request keys cannot contain ":", so these never collide with one
+    private final String requestKey = UUID.randomUUID().toString();
+
+    private BulkReservation(BulkReservationBuilder builder) {
+        this.site = builder.site;
+        this.rows = builder.rows;
+        this.holds = builder.holds;
+    }
+
+    public List<Row> getRows() {
+        return Collections.unmodifiableList(rows);
+    }
+
+    // Books every valid row in one transaction on the site's shard and records the outcome on each row.
+    // Safe to rerun through Retry: a run whose commit went through but was not acknowledged is read back
+    // by the rows' request keys instead of being booked again.
+    public void reserve() throws SQLException {
+        List<Row> pending = new ArrayList<>();
+        for (Row row : rows) {
+            if (row.time == null) {
+                row.result = "Invalid date";
+            } else {
+                pending.add(row);
+            }
+        }
+        // patients are accounts and never deleted, so they are resolved in the default database up front
+        Map<String, Integer> patientIds = selectPatientIds(namesOf(pending, true));
+
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+        LotInventory lots = LotInventory.forSite(site);
+        // lot ID -> {vaccine ID, doses taken by this bulk booking}
+        Map<Integer, int[]> used = new TreeMap<>();
+
+        try {
+            con.setAutoCommit(false);
+
+            if (readBack(con, pending, patientIds)) {
+                con.commit();
+                return;
+            }
+
+            // one pass per date fetches every free caregiver; nothing is locked for them until they are picked
+            Map<Date, int[]> free = new TreeMap<>();
+            for (Row row : pending) {
+                if (patientIds.containsKey(nameKey(row.patientName)) && !free.containsKey(row.time)) {
+                    free.put(row.time, null);
+                }
+            }
+            for (Map.Entry<Date, int[]> entry : free.entrySet()) {
+                entry.setValue(Availability.freeCaregivers(con, site, entry.getKey()));
+            }
+            Map<String, int[]> vaccines = selectVaccines(con, namesOf(pending, false));
+
+            // then hand the caregivers out in input order
+            Map<Date, List<Row>> byDate = new TreeMap<>();
+            for (Row row : pending) {
+                Integer patientId = patientIds.get(nameKey(row.patientName));
+                int[] vaccine = vaccines.get(nameKey(row.vaccineName));
+                if (patientId == null) {
+                    row.result = "Unknown patient";
+                } else if (vaccine == null) {
+                    row.result = "Unknown vaccine";
+                } else {
+                    row.patientId = patientId;
+                    row.vaccineId = vaccine[0];
+                    byDate.computeIfAbsent(row.time, k -> new ArrayList<>()).add(row);
+                }
+            }
+
+            // caregivers and doses held by a patient are only given to that patient's rows; each patient has
+            // at most one hold per site, and a row of theirs booking the held vaccine draws the held dose
+            Map<Integer, HoldTable.Hold> pendingHolds = holds.pending(con, site);
+            Map<String, Integer> holderOf = new HashMap<>();
+            for (HoldTable.Hold hold : pendingHolds.values()) {
+                holderOf.put(hold.getTime() + " " + hold.getCaregiverId(), hold.getPatientId());
+                for (int[] vaccine : vaccines.values()) {
+                    if (vaccine[0] == hold.getVaccineId()) {
+                        vaccine[1]--;
+                    }
+                }
+            }
+
+            List<Row> booked = new ArrayList<>();
+            Set<Integer> bookedPatients = new HashSet<>();
+            for (Map.Entry<Date, List<Row>> entry : byDate.entrySet()) {
+                int[] caregivers = free.get(entry.getKey());
+                boolean[] taken = new boolean[caregivers.length];
+                for (Row row : entry.getValue()) {
+                    int[] vaccine = vaccines.get(nameKey(row.vaccineName));
+                    HoldTable.Hold own = pendingHolds.get(row.patientId);
+                    boolean heldDose = own != null && own.getVaccineId() == row.vaccineId
+                            && !bookedPatients.contains(row.patientId);
+                    int next = nextCaregiver(caregivers, taken, entry.getKey(), row.patientId, holderOf);
+                    if (!heldDose && vaccine[1] <= 0) {
+                        row.result = "Not enough available doses";
+                    } else if (next == -1) {
+                        row.result = "No caregiver is available";
+                    } else if ((row.lotId = lots.take(con, row.vaccineId, row.time.toLocalDate())) == -1) {
+                        // the remaining doses all expire before the appointment
+                        row.result = "Not enough available doses";
+                    } else {
+                        taken[next] = true;
+                        row.caregiverId = caregivers[next];
+                        row.caregiverName = NameTable.CAREGIVERS.nameOf(row.caregiverId);
+                        if (!heldDose) {
+                            vaccine[1]--;
+                        }
+                        bookedPatients.add(row.patientId);
+                        used.computeIfAbsent(row.lotId, k -> new int[]{row.vaccineId, 0})[1]++;
+                        booked.add(row);
+                    }
+                }
+            }
+
+            if (!booked.isEmpty()) {
+                // the picked caregiver-days are locked after the vaccines, as every booking takes them, and in
+                // date and caregiver order so two bulk bookings cannot deadlock each other
+                List<Row> byDay = new ArrayList<>(booked);
+                byDay.sort(Comparator.comparing((Row row) -> row.time).thenComparingInt(row -> row.caregiverId));
+                for (Row row : byDay) {
+                    if (!Availability.lockCaregiverDay(con, site, row.time, row.caregiverId)) {
+                        throw new SQLException("Caregiver was booked concurrently", "40001");
+                    }
+                }
+                decreaseDoses(con, used);
+                insertReservations(con, booked);
+                deleteAvailabilities(con, booked);
+                // a booking consumes the patient's hold at the site, as a single reserve does
+                holds.release(con, bookedPatients, site);
+            }
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+            for (int[] lot : used.values()) {
+                lots.invalidate(lot[0]);
+            }
+            for (Row row : rows) {
+                row.caregiverName = null;
+                row.appointmentId = -1;
+                row.result = null;
+            }
+            if (LotInventory.isStale(e)) {
+                throw new SQLException("Lot inventory was stale", "40001", e);
+            }
+            if (e.getErrorCode() == 2627 || e.getErrorCode() == 2601) {
+                // the caregiver-day index caught a double booking the caregiver-day lock did not prevent
+                throw new SQLException("Caregiver was booked concurrently", "40001", e);
+            }
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Index of the first caregiver of the date that is not taken yet and not held by another patient, or -1.
+    // Package-private for the tests.
+    static int nextCaregiver(int[] caregivers, boolean[] taken, Date time, int patientId,
+                             Map<String, Integer> holderOf) {
+        for (int i = 0; i < caregivers.length; i++) {
+            Integer holder = holderOf.get(time + " " + caregivers[i]);
+            if (!taken[i] && (holder == null || holder == patientId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Fills in the rows of an earlier run that committed; false when no run did. Every row of a run commits
+    // together, so rows without a booking were not booked by it.
+    private boolean readBack(Connection con, List<Row> pending, Map<String, Integer> patientIds)
+            throws SQLException {
+        List<Row> candidates = new ArrayList<>();
+        for (Row row : pending) {
+            if (patientIds.containsKey(nameKey(row.patientName))) {
+                candidates.add(row);
+            }
+        }
+        boolean found = false;
+        for (int from = 0; from < candidates.size(); from += MAX_IN_PARAMETERS / 2) {
+            List<Row> chunk = candidates.subList(from, Math.min(candidates.size(), from + MAX_IN_PARAMETERS / 2));
+            StringBuilder query = new StringBuilder("SELECT ID, RequestKey, CaregiverID FROM Reservations WHERE Site = ? AND (");
+            for (int i = 0; i < chunk.size(); i++) {
+                query.append(i == 0 ? "" : " OR ").append("(PatientID = ? AND RequestKey = ?)");
+            }
+            PreparedStatement statement = con.prepareStatement(query.append(")").toString());
+            statement.setString(1, site);
+            int index = 2;
+            for (Row row : chunk) {
+                statement.setInt(index++, patientIds.get(nameKey(row.patientName)));
+                statement.setString(index++, keyOf(row));
+            }
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                String key = resultSet.getString("RequestKey");
+                Row row = rows.get(Integer.parseInt(key.substring(requestKey.length() + 1)));
+                row.appointmentId = resultSet.getInt("ID");
+                row.caregiverId = resultSet.getInt("CaregiverID");
+                row.caregiverName = NameTable.CAREGIVERS.nameOf(row.caregiverId);
+                row.result = "Appointment ID " + row.appointmentId + ", Caregiver username " + row.caregiverName;
+                found = true;
+            }
+        }
+        if (found) {
+            for (Row row : pending) {
+                if (!row.isBooked()) {
+                    row.result = "Not booked";
+                }
+            }
+        }
+        return found;
+    }
+
+    private String keyOf(Row row) {
+        return requestKey + ":" + row.index;
+    }
+
+    // The collation matches names regardless of case, so the maps of names read back are keyed the same way
+    private static String nameKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static List<String> namesOf(List<Row> rows, boolean patients) {
+        Set<String> names = new HashSet<>();
+        for (Row row : rows) {
+            names.add(patients ? row.patientName : row.vaccineName);
+        }
+        return new ArrayList<>(names);
+    }
+
+    private static Map<String, Integer> selectPatientIds(List<String> names) throws SQLException {
+        Map<String, Integer> ids = new HashMap<>();
+        if (names.isEmpty()) {
+            return ids;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            for (int from = 0; from < names.size(); from += MAX_IN_PARAMETERS) {
+                List<String> chunk = names.subList(from, Math.min(names.size(), from + MAX_IN_PARAMETERS));
+                PreparedStatement statement = con.prepareStatement(
+                        "SELECT ID, Username FROM Patients WHERE Username IN " + placeholders(chunk.size()));
+                for (int i = 0; i < chunk.size(); i++) {
+                    statement.setString(i + 1, chunk.get(i));
+                }
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    ids.put(nameKey(resultSet.getString("Username")), resultSet.getInt("ID"));
+                    NameTable.PATIENTS.put(resultSet.getInt("ID"), resultSet.getString("Username"));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return ids;
+    }
+
+    // key of the vaccine name -> {ID, doses in stock}
+    private Map<String, int[]> selectVaccines(Connection con, List<String> names) throws SQLException {
+        Map<String, int[]> vaccines = new HashMap<>();
+        for (int from = 0; from < names.size(); from += MAX_IN_PARAMETERS) {
+            List<String> chunk = names.subList(from, Math.min(names.size(), from + MAX_IN_PARAMETERS));
+            // lock the stock rows until commit so concurrent bookings cannot overdraw them
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT ID, Name, Doses FROM Vaccines WITH (UPDLOCK, HOLDLOCK) WHERE Site = ? AND Name IN " +
+                            placeholders(chunk.size()));
+            statement.setString(1, site);
+            for (int i = 0; i < chunk.size(); i++) {
+                statement.setString(i + 2, chunk.get(i));
+            }
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                vaccines.put(nameKey(resultSet.getString("Name")), new int[]{resultSet.getInt("ID"), resultSet.getInt("Doses")});
+                NameTable.vaccines(site).put(resultSet.getInt("ID"), resultSet.getString("Name"));
+            }
+        }
+        return vaccines;
+    }
+
+    private static void decreaseDoses(Connection con, Map<Integer, int[]> used) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(LotInventory.TAKE_DOSES);
+        for (Map.Entry<Integer, int[]> entry : used.entrySet()) {
+            statement.setInt(1, entry.getValue()[1]);
+            statement.setInt(2, entry.getKey());
+            statement.setInt(3, entry.getValue()[0]);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    private void insertReservations(Connection con, List<Row> booked) throws SQLException {
+        for (int from = 0; from < booked.size(); from += INSERT_ROWS_PER_STATEMENT) {
+            List<Row> chunk = booked.subList(from, Math.min(booked.size(), from + INSERT_ROWS_PER_STATEMENT));
+            StringBuilder insert = new StringBuilder("INSERT INTO Reservations " +
+                    "(Site, Time, CaregiverID, VaccineID, PatientID, LotID, RequestKey) " +
+                    ReminderService.RECORD_BOOKING + "OUTPUT INSERTED.ID, INSERTED.Time, INSERTED.CaregiverID VALUES ");
+            for (int i = 0; i < chunk.size(); i++) {
+                insert.append(i == 0 ? "(?, ?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?, ?)");
+            }
+            PreparedStatement statement = con.prepareStatement(insert.toString());
+            // a caregiver is booked at most once per date, so (date, caregiver) identifies the row
+            Map<String, Row> byCaregiverDay = new HashMap<>();
+            int index = 1;
+            for (Row row : chunk) {
+                statement.setString(index++, site);
+                statement.setDate(index++, row.time);
+                statement.setInt(index++, row.caregiverId);
+                statement.setInt(index++, row.vaccineId);
+                statement.setInt(index++, row.patientId);
+                statement.setInt(index++, row.lotId);
+                statement.setString(index++, keyOf(row));
+                byCaregiverDay.put(row.time + " " + row.caregiverId, row);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                Row row = byCaregiverDay.get(resultSet.getDate("Time") + " " + resultSet.getInt("CaregiverID"));
+                row.appointmentId = resultSet.getInt("ID");
+                row.result = "Appointment ID " + row.appointmentId + ", Caregiver username " + row.caregiverName;
+            }
+        }
+    }
+
+    private void deleteAvailabilities(Connection con, List<Row> booked) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(
+                "DELETE FROM Availabilities WHERE Site = ? AND Time = ? AND CaregiverID = ?");
+        for (Row row : booked) {
+            statement.setString(1, site);
+            statement.setDate(2, row.time);
+            statement.setInt(3, row.caregiverId);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.append(")").toString();
+    }
+
+    public static class Row {
+        // position in the input, part of the row's request key
+        private final int index;
+        private final String patientName;
+        private final Date time;
+        private final String vaccineName;
+        private int patientId;
+        private int vaccineId;
+        private int lotId;
+        private int caregiverId;
+        private String caregiverName;
+        private int appointmentId = -1;
+        private String result;
+
+        private Row(int index, String patientName, Date time, String vaccineName) {
+            this.index = index;
+            this.patientName = patientName;
+            this.time = time;
+            this.vaccineName = vaccineName;
+        }
+
+        public String getPatientName() {
+            return patientName;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+
+        public String getVaccineName() {
+            return vaccineName;
+        }
+
+        public String getCaregiverName() {
+            return caregiverName;
+        }
+
+        public int getAppointmentId() {
+            return appointmentId;
+        }
+
+        public boolean isBooked() {
+            return appointmentId != -1;
+        }
+
+        // either the appointment that was made or the reason the row was skipped
+        public String getResult() {
+            return result;
+        }
+    }
+
+    public static class BulkReservationBuilder {
+        private final String site;
+        private final HoldTable holds;
+        private final List<Row> rows = new ArrayList<>();
+
+        public BulkReservationBuilder(String site, HoldTable holds) {
+            this.site = site;
+            this.holds = holds;
+        }
+
+        public BulkReservationBuilder addRow(String patientName, String date, String vaccineName) {
+            Date d;
+            try {
+                d = Date.valueOf(date);
+            } catch (IllegalArgumentException e) {
+                d = null;
+            }
+            rows.add(new Row(rows.size(), patientName, d, vaccineName));
+            return this;
+        }
+
+        public BulkReservation build() {
+            return new BulkReservation(this);
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.NameTable;
 import scheduler.util.Util;
 
 import java.sql.*;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class Caregiver {
+    // assigned by the database, -1 until a built caregiver has been saved
+    private int id = -1;
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -18,12 +23,31 @@ public class Caregiver {
     }
 
     private Caregiver(CaregiverGetter getter) {
+        this.id = getter.id;
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
     }
 
+    private Caregiver(int id, String username, byte[] salt, byte[] hash) {
+        this.id = id;
+        this.username = username;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    // A caregiver whose session was resumed by its token. The account row was read together with the session,
+    // so no password is checked.
+    public static Caregiver resumed(int id, String username, byte[] salt, byte[] hash) {
+        NameTable.CAREGIVERS.put(id, username);
+        return new Caregiver(id, username, salt, hash);
+    }
+
     // Getters
+    public int getId() {
+        return id;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -40,37 +64,114 @@ public class Caregiver {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addCaregiver = "INSERT INTO Caregivers VALUES (?, ?, ?)";
+        String addCaregiver = "INSERT INTO Caregivers (Username, Salt, Hash) OUTPUT INSERTED.ID VALUES (?, ?, ?)";
         try {
             PreparedStatement statement = con.prepareStatement(addCaregiver);
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
-            statement.executeUpdate();
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            this.id = resultSet.getInt("ID");
+            NameTable.CAREGIVERS.put(this.id, this.username);
         } catch (SQLException e) {
-            throw new SQLException();
+            // keep the SQL state so callers can recognise a taken username
+            throw new SQLException(e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
         } finally {
             cm.closeConnection();
         }
     }
 
-    public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    public void uploadAvailability(Date d, String site) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
         Connection con = cm.createConnection();
 
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
+        String addAvailability = "INSERT INTO Availabilities (Site, Time, CaregiverID) VALUES (?, ?, ?)";
         try {
             PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
+            statement.setString(1, site);
+            statement.setDate(2, d);
+            statement.setInt(3, this.id);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException("Could not upload availability: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Makes the caregiver available on the weekdays (Availability.weekdayBit) from first to last, except on
+    // the skipped dates. Nothing is written per date, the rule is expanded when the dates are looked at.
+    public void addAvailabilityRule(Date first, Date last, int weekdays, List<Date> skipped, String site)
+            throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+
+        String addRule = "INSERT INTO AvailabilityRules (Site, CaregiverID, FirstDate, LastDate, Weekdays) " +
+                "VALUES (?, ?, ?, ?, ?)";
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = con.prepareStatement(addRule);
+            statement.setString(1, site);
+            statement.setInt(2, this.id);
+            statement.setDate(3, first);
+            statement.setDate(4, last);
+            statement.setInt(5, weekdays);
+            statement.executeUpdate();
+            addExceptions(con, skipped, site);
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+            throw new SQLException("Could not add availability rule: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Takes the date out of the caregiver's rules and drops a one-off availability on it; bookings stay
+    public void skipAvailability(Date d, String site) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+
+        String removeAvailability = "DELETE FROM Availabilities WHERE Site = ? AND Time = ? AND CaregiverID = ?";
+        try {
+            con.setAutoCommit(false);
+            // a booking of the day in flight finishes first, one starting later sees the skip; whether the
+            // caregiver is still free does not matter here, bookings stay
+            Availability.lockCaregiverDay(con, site, d, this.id);
+            addExceptions(con, Collections.singletonList(d), site);
+            PreparedStatement statement = con.prepareStatement(removeAvailability);
+            statement.setString(1, site);
+            statement.setDate(2, d);
+            statement.setInt(3, this.id);
             statement.executeUpdate();
+            con.commit();
         } catch (SQLException e) {
-            throw new SQLException();
+            con.rollback();
+            throw new SQLException("Could not skip availability: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
         } finally {
             cm.closeConnection();
         }
     }
 
+    private void addExceptions(Connection con, List<Date> dates, String site) throws SQLException {
+        // a date may already be skipped
+        PreparedStatement statement = con.prepareStatement(
+                "INSERT INTO AvailabilityExceptions (Site, Time, CaregiverID) SELECT ?, ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM AvailabilityExceptions WITH (UPDLOCK, HOLDLOCK) " +
+                "WHERE Site = ? AND Time = ? AND CaregiverID = ?)");
+        for (Date d : dates) {
+            statement.setString(1, site);
+            statement.setDate(2, d);
+            statement.setInt(3, this.id);
+            statement.setString(4, site);
+            statement.setDate(5, d);
+            statement.setInt(6, this.id);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
     public static class CaregiverBuilder {
         private final String username;
         private final byte[] salt;
@@ -88,7 +189,8 @@ public class Caregiver {
     }
 
     public static class CaregiverGetter {
-        private final String username;
+        private int id;
+        private String username;
         private final String password;
         private byte[] salt;
         private byte[] hash;
@@ -102,7 +204,7 @@ public class Caregiver {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+            String getCaregiver = "SELECT ID, Username, Salt, Hash FROM Caregivers WHERE Username = ?";
             try {
                 PreparedStatement statement = con.prepareStatement(getCaregiver);
                 statement.setString(1, this.username);
@@ -113,10 +215,12 @@ public class Caregiver {
                     // try to remove the use of Util.trim() and you'll see :)
                     byte[] hash = Util.trim(resultSet.getBytes("Hash"));
                     // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
+                    if (!Arrays.equals(hash, Util.generateHash(password, salt))) {
                         return null;
                     } else {
+                        this.id = resultSet.getInt("ID");
+                        this.username = resultSet.getString("Username");
+                        NameTable.CAREGIVERS.put(this.id, this.username);
                         this.salt = salt;
                         this.hash = hash;
                         return new Caregiver(this);
@@ -124,7 +228,7 @@ public class Caregiver {
                 }
                 return null;
             } catch (SQLException e) {
-                throw new SQLException();
+                throw new SQLException("Could not look up caregiver: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
             } finally {
                 cm.closeConnection();
             }
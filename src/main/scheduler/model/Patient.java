@@ -1,6 +1,7 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.NameTable;
 import scheduler.util.Util;
 
 import java.sql.Connection;
@@ -10,6 +11,8 @@ import java.sql.SQLException;
 import java.util.Arrays;
 
 public class Patient {
+    // assigned by the database, -1 until a built patient has been saved
+    private int id = -1;
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -21,12 +24,31 @@ public class Patient {
     }
 
     private Patient(Patient.PatientGetter getter) {
+        this.id = getter.id;
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
     }
 
+    private Patient(int id, String username, byte[] salt, byte[] hash) {
+        this.id = id;
+        this.username = username;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    // A patient whose session was resumed by its token. The account row was read together with the session,
+    // so no password is checked.
+    public static Patient resumed(int id, String username, byte[] salt, byte[] hash) {
+        NameTable.PATIENTS.put(id, username);
+        return new Patient(id, username, salt, hash);
+    }
+
     // Getters
+    public int getId() {
+        return id;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -43,15 +65,19 @@ public class Patient {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addPatient = "INSERT INTO Patients VALUES (?, ?, ?)";
+        String addPatient = "INSERT INTO Patients (Username, Salt, Hash) OUTPUT INSERTED.ID VALUES (?, ?, ?)";
         try {
             PreparedStatement statement = con.prepareStatement(addPatient);
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
-            statement.executeUpdate();
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            this.id = resultSet.getInt("ID");
+            NameTable.PATIENTS.put(this.id, this.username);
         } catch (SQLException e) {
-            throw new SQLException();
+            // keep the SQL state so callers can recognise a taken username
+            throw new SQLException(e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
         } finally {
             cm.closeConnection();
         }
@@ -74,7 +100,8 @@ public class Patient {
     }
 
     public static class PatientGetter {
-        private final String username;
+        private int id;
+        private String username;
         private final String password;
         private byte[] salt;
         private byte[] hash;
@@ -88,7 +115,7 @@ public class Patient {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
+            String getPatient = "SELECT ID, Username, Salt, Hash FROM Patients WHERE Username = ?";
             try {
                 PreparedStatement statement = con.prepareStatement(getPatient);
                 statement.setString(1, this.username);
@@ -97,10 +124,12 @@ public class Patient {
                     byte[] salt = resultSet.getBytes("Salt");
                     byte[] hash = Util.trim(resultSet.getBytes("Hash"));
                     // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
+                    if (!Arrays.equals(hash, Util.generateHash(password, salt))) {
                         return null;
                     } else {
+                        this.id = resultSet.getInt("ID");
+                        this.username = resultSet.getString("Username");
+                        NameTable.PATIENTS.put(this.id, this.username);
                         this.salt = salt;
                         this.hash = hash;
                         return new Patient(this);
@@ -108,7 +137,7 @@ public class Patient {
                 }
                 return null;
             } catch (SQLException e) {
-                throw new SQLException();
+                throw new SQLException("Could not look up patient: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
             } finally {
                 cm.closeConnection();
             }
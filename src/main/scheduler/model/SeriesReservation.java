@@ -0,0 +1,362 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.NameTable;
+import scheduler.hold.HoldTable;
+import scheduler.inventory.LotInventory;
+import scheduler.reminder.ReminderService;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Books every dose of a vaccine series for one patient, starting on the requested date.
+// The free caregivers of the whole window are read once into an in-memory calendar, the dose dates are
+// planned on it and all appointments and the dose decrement are committed together or not at all.
+// Caregivers and doses held by other patients are left out, and the series consumes the patient's own hold.
+// Dose n is booked under the request key "<key>:<n>", so a repeated request reads the series it booked back
+// instead of booking a second one. Client keys cannot contain ":", so these never collide with one.
+public class SeriesReservation {
+    // the dose suffix has to fit into the 64 characters of Reservations.RequestKey
+    public static final int MAX_REQUEST_KEY_LENGTH = 60;
+
+    private final String site;
+    private final int patientId;
+    private final String vaccineName;
+    private final Date firstDose;
+    private final String requestKey;
+    private final HoldTable holds;
+
+    private final List<Appointment> appointments = new ArrayList<>();
+    private String result;
+
+    private SeriesReservation(SeriesReservationBuilder builder) {
+        this.site = builder.site;
+        this.patientId = builder.patientId;
+        this.vaccineName = builder.vaccineName;
+        this.firstDose = builder.firstDose;
+        this.requestKey = builder.requestKey;
+        this.holds = builder.holds;
+    }
+
+    // the booked doses in order, empty unless the whole series was booked
+    public List<Appointment> getAppointments() {
+        return Collections.unmodifiableList(appointments);
+    }
+
+    public boolean isBooked() {
+        return !appointments.isEmpty();
+    }
+
+    // the reason the series was not booked, null once it is
+    public String getResult() {
+        return result;
+    }
+
+    // One attempt, safe to repeat through Retry
+    public void reserve() throws SQLException {
+        appointments.clear();
+        result = null;
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+        LotInventory lots = LotInventory.forSite(site);
+        int takenFrom = -1;
+
+        try {
+            con.setAutoCommit(false);
+
+            // lock the stock row until commit so concurrent bookings cannot overdraw it
+            PreparedStatement vaccineStatement = con.prepareStatement(
+                    "SELECT v.ID, v.Doses, s.DoseCount, s.MinIntervalDays, s.MaxIntervalDays " +
+                    "FROM Vaccines v WITH (UPDLOCK, HOLDLOCK) LEFT JOIN VaccineSeries s ON s.VaccineID = v.ID " +
+                    "WHERE v.Site = ? AND v.Name = ?");
+            vaccineStatement.setString(1, site);
+            vaccineStatement.setString(2, vaccineName);
+            ResultSet vaccine = vaccineStatement.executeQuery();
+            if (!vaccine.next()) {
+                result = "Unknown vaccine";
+                return;
+            }
+            int vaccineId = vaccine.getInt("ID");
+            int doses = vaccine.getInt("Doses");
+            int doseCount = vaccine.getInt("DoseCount");
+            if (vaccine.wasNull()) {
+                result = "No series is defined for " + vaccineName;
+                return;
+            }
+            int minInterval = vaccine.getInt("MinIntervalDays");
+            int maxInterval = vaccine.getInt("MaxIntervalDays");
+            List<Appointment> booked = findSeries(con, doseCount);
+            if (!booked.isEmpty()) {
+                con.commit();
+                appointments.addAll(booked);
+                return;
+            }
+            // doses held by other patients are promised to them
+            if (doses - holds.heldDoses(con, site, vaccineId, patientId) < doseCount) {
+                result = "Not enough available doses";
+                return;
+            }
+
+            LocalDate first = firstDose.toLocalDate();
+            LocalDate last = first.plusDays((long) (doseCount - 1) * maxInterval);
+            TreeMap<LocalDate, int[]> calendar =
+                    Availability.freeCaregivers(con, site, firstDose, Date.valueOf(last));
+            // and so are the caregivers they hold
+            Map<LocalDate, Set<Integer>> held =
+                    holds.heldCaregivers(con, site, firstDose, Date.valueOf(last), patientId);
+            calendar.replaceAll((day, caregivers) -> HoldTable.withoutHeld(caregivers, held.get(day)));
+            calendar.values().removeIf(caregivers -> caregivers.length == 0);
+            int[] plan = plan(calendar, first, doseCount, minInterval, maxInterval);
+            if (plan == null) {
+                result = "No caregiver is available for every dose";
+                return;
+            }
+
+            // each dose comes from the earliest-expiring lot still good on its own date
+            List<Appointment> planned = new ArrayList<>();
+            Map<Integer, Integer> byLot = new TreeMap<>();
+            takenFrom = vaccineId;
+            for (int offset : plan) {
+                LocalDate day = first.plusDays(offset);
+                int lotId = lots.take(con, vaccineId, day);
+                if (lotId == -1) {
+                    // take re-reads the lots before it misses, so this is a real stock-out; re-reading again
+                    // also gives back the doses already taken in memory for the earlier dates
+                    con.rollback();
+                    lots.invalidate(vaccineId);
+                    result = "Not enough available doses";
+                    return;
+                }
+                byLot.merge(lotId, 1, Integer::sum);
+                int caregiverId = calendar.get(day)[0];
+                planned.add(new Appointment(Date.valueOf(day), caregiverId, NameTable.CAREGIVERS.nameOf(caregiverId),
+                        lotId, planned.size() + 1));
+            }
+            // the planned caregiver-days are locked in date order, after the vaccine as every booking takes them
+            for (Appointment appointment : planned) {
+                if (!Availability.lockCaregiverDay(con, site, appointment.time, appointment.caregiverId)) {
+                    throw new SQLException("Caregiver was booked concurrently", "40001");
+                }
+            }
+            insertReservations(con, vaccineId, planned);
+
+            PreparedStatement decrease = con.prepareStatement(LotInventory.TAKE_DOSES);
+            for (Map.Entry<Integer, Integer> entry : byLot.entrySet()) {
+                decrease.setInt(1, entry.getValue());
+                decrease.setInt(2, entry.getKey());
+                decrease.setInt(3, vaccineId);
+                decrease.addBatch();
+            }
+            decrease.executeBatch();
+
+            PreparedStatement delete = con.prepareStatement(
+                    "DELETE FROM Availabilities WHERE Site = ? AND Time = ? AND CaregiverID = ?");
+            for (Appointment appointment : planned) {
+                delete.setString(1, site);
+                delete.setDate(2, appointment.time);
+                delete.setInt(3, appointment.caregiverId);
+                delete.addBatch();
+            }
+            delete.executeBatch();
+
+            // the series consumes the patient's hold at the site, as a single booking does
+            holds.release(con, patientId, site);
+
+            con.commit();
+            appointments.addAll(planned);
+        } catch (SQLException e) {
+            con.rollback();
+            if (takenFrom != -1) {
+                lots.invalidate(takenFrom);
+            }
+            if (LotInventory.isStale(e)) {
+                throw new SQLException("Lot inventory was stale", "40001", e);
+            }
+            if (e.getErrorCode() == 2627 || e.getErrorCode() == 2601) {
+                // the caregiver-day index caught a double booking the caregiver-day lock did not prevent;
+                // the same request committing concurrently is read back by the next attempt
+                throw new SQLException("Caregiver was booked concurrently", "40001", e);
+            }
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Day offsets from the first dose for every dose, each as early as the rest of the series allows,
+    // or null if the calendar cannot fit the series. feasible[k][day] tells whether dose k can be given
+    // on day with a way to fit the remaining doses after it, filled in from the last dose backwards.
+    // Package-private for the tests.
+    static int[] plan(TreeMap<LocalDate, int[]> calendar, LocalDate first, int doseCount, int minInterval,
+                      int maxInterval) {
+        int days = (doseCount - 1) * maxInterval + 1;
+        boolean[] free = new boolean[days];
+        for (LocalDate day : calendar.keySet()) {
+            long offset = day.toEpochDay() - first.toEpochDay();
+            if (offset >= 0 && offset < days) {
+                free[(int) offset] = true;
+            }
+        }
+
+        boolean[][] feasible = new boolean[doseCount][days];
+        for (int k = doseCount - 1; k >= 0; k--) {
+            // reachable[i] = number of days before i on which dose k + 1 is feasible
+            int[] reachable = new int[days + 1];
+            if (k < doseCount - 1) {
+                for (int day = 0; day < days; day++) {
+                    reachable[day + 1] = reachable[day] + (feasible[k + 1][day] ? 1 : 0);
+                }
+            }
+            for (int day = 0; day < days; day++) {
+                if (!free[day]) {
+                    continue;
+                }
+                if (k == doseCount - 1) {
+                    feasible[k][day] = true;
+                } else {
+                    int from = Math.min(days, day + minInterval);
+                    int to = Math.min(days, day + maxInterval + 1);
+                    feasible[k][day] = reachable[to] - reachable[from] > 0;
+                }
+            }
+        }
+
+        if (!feasible[0][0]) {
+            return null;
+        }
+        int[] plan = new int[doseCount];
+        for (int k = 1; k < doseCount; k++) {
+            int day = plan[k - 1] + minInterval;
+            while (!feasible[k][day]) {
+                day++;
+            }
+            plan[k] = day;
+        }
+        return plan;
+    }
+
+    // The doses an earlier run of this request booked, in order; empty if it booked none. The doses commit
+    // together, so either all of them are found or none.
+    private List<Appointment> findSeries(Connection con, int doseCount) throws SQLException {
+        StringBuilder query = new StringBuilder("SELECT ID, Time, CaregiverID, LotID, RequestKey FROM Reservations " +
+                "WHERE Site = ? AND PatientID = ? AND RequestKey IN (");
+        for (int dose = 1; dose <= doseCount; dose++) {
+            query.append(dose == 1 ? "?" : ", ?");
+        }
+        PreparedStatement statement = con.prepareStatement(query.append(") ORDER BY Time").toString());
+        statement.setString(1, site);
+        statement.setInt(2, patientId);
+        for (int dose = 1; dose <= doseCount; dose++) {
+            statement.setString(dose + 2, keyOf(dose));
+        }
+        ResultSet resultSet = statement.executeQuery();
+        List<Appointment> booked = new ArrayList<>();
+        while (resultSet.next()) {
+            int caregiverId = resultSet.getInt("CaregiverID");
+            Appointment appointment = new Appointment(resultSet.getDate("Time"), caregiverId,
+                    NameTable.CAREGIVERS.nameOf(caregiverId), resultSet.getInt("LotID"), booked.size() + 1);
+            appointment.appointmentId = resultSet.getInt("ID");
+            booked.add(appointment);
+        }
+        return booked;
+    }
+
+    private String keyOf(int dose) {
+        return requestKey + ":" + dose;
+    }
+
+    private void insertReservations(Connection con, int vaccineId, List<Appointment> planned) throws SQLException {
+        StringBuilder insert = new StringBuilder("INSERT INTO Reservations " +
+                "(Site, Time, CaregiverID, VaccineID, PatientID, LotID, RequestKey) " + ReminderService.RECORD_BOOKING +
+                "OUTPUT INSERTED.ID, INSERTED.Time VALUES ");
+        for (int i = 0; i < planned.size(); i++) {
+            insert.append(i == 0 ? "(?, ?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?, ?)");
+        }
+        PreparedStatement statement = con.prepareStatement(insert.toString());
+        // the doses are on different dates, so the date identifies the row
+        Map<Date, Appointment> byDate = new HashMap<>();
+        int index = 1;
+        for (Appointment appointment : planned) {
+            statement.setString(index++, site);
+            statement.setDate(index++, appointment.time);
+            statement.setInt(index++, appointment.caregiverId);
+            statement.setInt(index++, vaccineId);
+            statement.setInt(index++, patientId);
+            statement.setInt(index++, appointment.lotId);
+            statement.setString(index++, keyOf(appointment.dose));
+            byDate.put(appointment.time, appointment);
+        }
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+            byDate.get(resultSet.getDate("Time")).appointmentId = resultSet.getInt("ID");
+        }
+    }
+
+    public static class Appointment {
+        private final Date time;
+        private final int caregiverId;
+        private final String caregiverName;
+        private final int lotId;
+        // 1 for the first dose
+        private final int dose;
+        private int appointmentId = -1;
+
+        private Appointment(Date time, int caregiverId, String caregiverName, int lotId, int dose) {
+            this.time = time;
+            this.caregiverId = caregiverId;
+            this.caregiverName = caregiverName;
+            this.lotId = lotId;
+            this.dose = dose;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+
+        public String getCaregiverName() {
+            return caregiverName;
+        }
+
+        public int getAppointmentId() {
+            return appointmentId;
+        }
+    }
+
+    public static class SeriesReservationBuilder {
+        private final String site;
+        private final int patientId;
+        private final String vaccineName;
+        private final Date firstDose;
+        private final String requestKey;
+        private final HoldTable holds;
+
+        public SeriesReservationBuilder(String site, int patientId, String vaccineName, Date firstDose,
+                                        String requestKey, HoldTable holds) {
+            this.site = site;
+            this.patientId = patientId;
+            this.vaccineName = vaccineName;
+            this.firstDose = firstDose;
+            this.requestKey = requestKey;
+            this.holds = holds;
+        }
+
+        public SeriesReservation build() {
+            if (requestKey.length() > MAX_REQUEST_KEY_LENGTH) {
+                throw new IllegalArgumentException("Request keys of a series have at most " + MAX_REQUEST_KEY_LENGTH
+                        + " characters");
+            }
+            return new SeriesReservation(this);
+        }
+    }
+}
@@ -1,147 +1,95 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.inventory.LotInventory;
 
 import java.sql.Connection;
+import java.sql.Date;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
+// Vaccine stock of a site. The doses are only ever changed on the server: restocks through addDoses, and
+// bookings and cancellations through the reservation transactions.
 public class Vaccine {
-    private final String vaccineName;
-    private int availableDoses;
-
-    private Vaccine(VaccineBuilder builder) {
-        this.vaccineName = builder.vaccineName;
-        this.availableDoses = builder.availableDoses;
-    }
-
-    private Vaccine(VaccineGetter getter) {
-        this.vaccineName = getter.vaccineName;
-        this.availableDoses = getter.availableDoses;
-    }
-
-    // Getters
-    public String getVaccineName() {
-        return vaccineName;
-    }
-
-    public int getAvailableDoses() {
-        return availableDoses;
-    }
-
-    public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
-            statement.setString(1, this.vaccineName);
-            statement.setInt(2, this.availableDoses);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
-    }
-
-    // Increment the available doses
-    public void increaseAvailableDoses(int num) throws SQLException {
-        if (num <= 0) {
-            throw new IllegalArgumentException("Argument cannot be negative!");
-        }
-        this.availableDoses += num;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
-    }
-
-    // Decrement the available doses
-    public void decreaseAvailableDoses(int num) throws SQLException {
-        if (this.availableDoses - num < 0) {
-            throw new IllegalArgumentException("Not enough available doses!");
-        }
-        this.availableDoses -= num;
-        ConnectionManager cm = new ConnectionManager();
+    // Creates each vaccine and lot or adds to their stock, all in a single transaction: one batch of upserts
+    // for the vaccine totals, one for the lots. The increments happen on the server, so concurrent restocks
+    // neither lose updates nor collide on the key. A lot that exists already keeps its recorded expiry.
+    public static void addDoses(String site, List<Delivery> deliveries) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
+        String upsertDoses = "MERGE Vaccines WITH (HOLDLOCK) AS v " +
+                "USING (VALUES (?, ?, ?)) AS s (Site, Name, Doses) ON v.Site = s.Site AND v.Name = s.Name " +
+                "WHEN MATCHED THEN UPDATE SET Doses = v.Doses + s.Doses " +
+                "WHEN NOT MATCHED THEN INSERT (Site, Name, Doses) VALUES (s.Site, s.Name, s.Doses);";
+        String upsertLot = "MERGE VaccineLots WITH (HOLDLOCK) AS l " +
+                "USING (SELECT v.ID, ?, ?, ? FROM Vaccines v WHERE v.Site = ? AND v.Name = ?) " +
+                "AS s (VaccineID, Lot, Expiry, Doses) ON l.VaccineID = s.VaccineID AND l.Lot = s.Lot " +
+                "WHEN MATCHED THEN UPDATE SET Doses = l.Doses + s.Doses " +
+                "WHEN NOT MATCHED THEN INSERT (VaccineID, Lot, Expiry, Doses) " +
+                "VALUES (s.VaccineID, s.Lot, s.Expiry, s.Doses);";
         try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
+            con.setAutoCommit(false);
+            // vaccines in name order, so concurrent restocks lock them in the same order
+            Map<String, Integer> totals = new TreeMap<>();
+            for (Delivery delivery : deliveries) {
+                if (delivery.doses <= 0) {
+                    throw new IllegalArgumentException("Argument cannot be negative!");
+                }
+                totals.merge(delivery.vaccineName, delivery.doses, Integer::sum);
+            }
+            PreparedStatement statement = con.prepareStatement(upsertDoses);
+            for (Map.Entry<String, Integer> entry : totals.entrySet()) {
+                statement.setString(1, site);
+                statement.setString(2, entry.getKey());
+                statement.setInt(3, entry.getValue());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+
+            PreparedStatement lotStatement = con.prepareStatement(upsertLot);
+            for (Delivery delivery : deliveries) {
+                lotStatement.setString(1, delivery.lot);
+                lotStatement.setDate(2, delivery.expiry);
+                lotStatement.setInt(3, delivery.doses);
+                lotStatement.setString(4, site);
+                lotStatement.setString(5, delivery.vaccineName);
+                lotStatement.addBatch();
+            }
+            lotStatement.executeBatch();
+            con.commit();
+            LotInventory.forSite(site).invalidateAll();
         } catch (SQLException e) {
-            throw new SQLException();
+            con.rollback();
+            throw new SQLException("Could not add doses: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
         } finally {
             cm.closeConnection();
         }
     }
 
-    @Override
-    public String toString() {
-        return "Vaccine{" +
-                "vaccineName='" + vaccineName + '\'' +
-                ", availableDoses=" + availableDoses +
-                '}';
-    }
-
-    public static class VaccineBuilder {
+    // Doses of one lot delivered to a site
+    public static class Delivery {
         private final String vaccineName;
-        private int availableDoses;
+        private final String lot;
+        private final Date expiry;
+        private final int doses;
 
-        public VaccineBuilder(String vaccineName, int availableDoses) {
+        public Delivery(String vaccineName, String lot, Date expiry, int doses) {
             this.vaccineName = vaccineName;
-            this.availableDoses = availableDoses;
+            this.lot = lot;
+            this.expiry = expiry;
+            this.doses = doses;
         }
 
-        public Vaccine build() throws SQLException {
-            return new Vaccine(this);
+        public Date getExpiry() {
+            return expiry;
         }
-    }
-
-    public static class VaccineGetter {
-        private final String vaccineName;
-        private int availableDoses;
 
-        public VaccineGetter(String vaccineName) {
-            this.vaccineName = vaccineName;
-        }
-
-        public Vaccine get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
-                statement.setString(1, this.vaccineName);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    this.availableDoses = resultSet.getInt("Doses");
-                    return new Vaccine(this);
-                }
-                return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
-            }
+        public int getDoses() {
+            return doses;
         }
     }
 }
-
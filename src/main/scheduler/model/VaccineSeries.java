@@ -0,0 +1,96 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+// A vaccine given as a series: doseCount appointments, each minIntervalDays to maxIntervalDays after the previous
+public class VaccineSeries {
+    public static final int MAX_DOSES = 10;
+    public static final int MAX_INTERVAL_DAYS = 365;
+
+    private final String site;
+    private final int vaccineId;
+    private final int doseCount;
+    private final int minIntervalDays;
+    private final int maxIntervalDays;
+
+    private VaccineSeries(VaccineSeriesBuilder builder) {
+        this.site = builder.site;
+        this.vaccineId = builder.vaccineId;
+        this.doseCount = builder.doseCount;
+        this.minIntervalDays = builder.minIntervalDays;
+        this.maxIntervalDays = builder.maxIntervalDays;
+    }
+
+    // Getters
+    public int getVaccineId() {
+        return vaccineId;
+    }
+
+    public int getDoseCount() {
+        return doseCount;
+    }
+
+    public int getMinIntervalDays() {
+        return minIntervalDays;
+    }
+
+    public int getMaxIntervalDays() {
+        return maxIntervalDays;
+    }
+
+    // Creates the series definition of the vaccine or replaces the existing one
+    public void saveToDB() throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+
+        String upsertSeries = "MERGE VaccineSeries WITH (HOLDLOCK) AS s " +
+                "USING (VALUES (?, ?, ?, ?)) AS n (VaccineID, DoseCount, MinIntervalDays, MaxIntervalDays) " +
+                "ON s.VaccineID = n.VaccineID " +
+                "WHEN MATCHED THEN UPDATE SET DoseCount = n.DoseCount, MinIntervalDays = n.MinIntervalDays, " +
+                "MaxIntervalDays = n.MaxIntervalDays " +
+                "WHEN NOT MATCHED THEN INSERT (VaccineID, DoseCount, MinIntervalDays, MaxIntervalDays) " +
+                "VALUES (n.VaccineID, n.DoseCount, n.MinIntervalDays, n.MaxIntervalDays);";
+        try {
+            PreparedStatement statement = con.prepareStatement(upsertSeries);
+            statement.setInt(1, this.vaccineId);
+            statement.setInt(2, this.doseCount);
+            statement.setInt(3, this.minIntervalDays);
+            statement.setInt(4, this.maxIntervalDays);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException("Could not save vaccine series: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public static class VaccineSeriesBuilder {
+        private final String site;
+        private final int vaccineId;
+        private final int doseCount;
+        private final int minIntervalDays;
+        private final int maxIntervalDays;
+
+        public VaccineSeriesBuilder(String site, int vaccineId, int doseCount, int minIntervalDays, int maxIntervalDays) {
+            this.site = site;
+            this.vaccineId = vaccineId;
+            this.doseCount = doseCount;
+            this.minIntervalDays = minIntervalDays;
+            this.maxIntervalDays = maxIntervalDays;
+        }
+
+        public VaccineSeries build() {
+            if (doseCount < 2 || doseCount > MAX_DOSES) {
+                throw new IllegalArgumentException("A series has 2 to " + MAX_DOSES + " doses");
+            }
+            if (minIntervalDays < 1 || minIntervalDays > maxIntervalDays || maxIntervalDays > MAX_INTERVAL_DAYS) {
+                throw new IllegalArgumentException("Intervals must satisfy 1 <= min <= max <= " + MAX_INTERVAL_DAYS);
+            }
+            return new VaccineSeries(this);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package scheduler.reminder;
+
+import scheduler.db.ConnectionManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.BitSet;
+import java.util.TreeMap;
+
+// Reminders 24 hours and 1 hour before every appointment of a site, written to a local outbox file that
+// another process consumes. It runs as a dedicated process, never inside a scheduler session:
+//
+//   java scheduler.reminder.ReminderService [<site>]
+//
+// An application lock on the site's primary stops a second instance for the same site from starting, so each
+// reminder is written once. Upcoming reservations are loaded once at startup; after that the wheel is kept
+// current by the ReminderEvents rows that every reserve and cancel writes in its own statement (RECORD_BOOKING,
+// RECORD_CANCELLATION), so the Reservations table is never polled. Each minute the process takes the site's
+// new events off that table, then emits the reminders that came due.
+//
+// Outbox lines: "<REMIND_24H|REMIND_1H> <appointment ID> <appointment start>"
+public class ReminderService {
+    // OUTPUT clauses for the INSERT into and the DELETE from Reservations that record the booking or the
+    // cancellation for the reminder process in the same statement; they go before any other OUTPUT clause
+    public static final String RECORD_BOOKING = "OUTPUT INSERTED.Site, INSERTED.ID, INSERTED.Time, 0 " +
+            "INTO ReminderEvents (Site, AppointmentID, Time, Cancelled) ";
+    public static final String RECORD_CANCELLATION = "OUTPUT DELETED.Site, DELETED.ID, DELETED.Time, 1 " +
+            "INTO ReminderEvents (Site, AppointmentID, Time, Cancelled) ";
+
+    private static final int FETCH_SIZE = 10000;
+    private static final int EVENTS_PER_READ = 1000;
+    private static final long MINUTE_MILLIS = 60_000;
+    private static final int DAY_BEFORE = 0;
+    private static final int HOUR_BEFORE = 1;
+    private static final long[] LEAD_MINUTES = {24 * 60, 60};
+    private static final String[] KINDS = {"REMIND_24H", "REMIND_1H"};
+
+    private final Path outbox;
+    // the site whose reservations this process reminds about
+    private final String site;
+    // reservations only carry a date, the reminders assume the appointment starts at this hour
+    private final int appointmentHour;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private final TimingWheel wheel;
+    // appointments with reminders on the wheel; a booking both loaded at startup and still waiting as an
+    // event is scheduled once
+    private final BitSet scheduled = new BitSet();
+    private final StringBuilder batch = new StringBuilder();
+
+    private long written = 0;
+    private long unscheduled = 0;
+
+    private ReminderService(Path outbox, String site, int appointmentHour) {
+        this.outbox = outbox;
+        this.site = site;
+        this.appointmentHour = appointmentHour;
+        this.wheel = new TimingWheel(System.currentTimeMillis() / MINUTE_MILLIS);
+    }
+
+    // The service configured by ReminderOutbox (and optionally AppointmentHour), or null when reminders are off
+    public static ReminderService fromEnvironment(String site) {
+        String outbox = System.getenv("ReminderOutbox");
+        if (outbox == null) {
+            return null;
+        }
+        String hour = System.getenv("AppointmentHour");
+        return new ReminderService(Paths.get(outbox), site, hour == null ? 9 : Integer.parseInt(hour));
+    }
+
+    public static void main(String[] args) {
+        String site = args.length > 0 ? args[0] : System.getenv("Site");
+        if (site == null) {
+            site = ConnectionManager.DEFAULT_SITE;
+        }
+        if (!ConnectionManager.isSite(site)) {
+            System.out.println("Unknown site, the sites are " + ConnectionManager.getSites());
+            System.exit(1);
+        }
+        ReminderService service = fromEnvironment(site);
+        if (service == null) {
+            System.out.println("Set ReminderOutbox to the outbox file");
+            System.exit(1);
+        }
+        try {
+            service.run();
+        } catch (SQLException e) {
+            System.out.println("Reminders stopped: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    // Takes the site's reminder lock, loads the upcoming reservations and then applies events and emits
+    // reminders once a minute until the lock is lost
+    public void run() throws SQLException, InterruptedException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection lock = cm.createConnection();
+        if (lock == null) {
+            throw new SQLException("Could not connect to site " + site, "08001");
+        }
+        try {
+            if (!acquireLock(lock)) {
+                throw new SQLException("Another reminder process already serves site " + site);
+            }
+            // events written before the load are applied after it; the scheduled set drops their repeats
+            load();
+            System.out.println("Sending reminders for site " + site + " to " + outbox);
+            while (true) {
+                try {
+                    applyEvents();
+                    emitDue(System.currentTimeMillis() / MINUTE_MILLIS);
+                } catch (SQLException | IOException e) {
+                    // nothing is lost: unread events stay in the table and the batch is kept for the next minute
+                    e.printStackTrace();
+                }
+                if (!holdsLock(lock)) {
+                    throw new SQLException("Lost the reminder lock of site " + site);
+                }
+                Thread.sleep(MINUTE_MILLIS - System.currentTimeMillis() % MINUTE_MILLIS);
+            }
+        } finally {
+            // the lock belongs to the session, so the connection must not go back to the pool
+            lock.close();
+            cm.closeConnection();
+        }
+    }
+
+    public synchronized String getStats() {
+        return "reminders (" + site + "): " + wheel.size() + " pending, " + written + " written to " + outbox
+                + ", " + unscheduled + " taken back for cancelled appointments";
+    }
+
+    private boolean acquireLock(Connection lock) throws SQLException {
+        PreparedStatement statement = lock.prepareStatement("SET NOCOUNT ON; DECLARE @result int; " +
+                "EXEC @result = sp_getapplock @Resource = ?, @LockMode = 'Exclusive', @LockOwner = 'Session', " +
+                "@LockTimeout = 0; SELECT @result");
+        statement.setString(1, lockName());
+        ResultSet resultSet = statement.executeQuery();
+        return resultSet.next() && resultSet.getInt(1) >= 0;
+    }
+
+    private boolean holdsLock(Connection lock) throws SQLException {
+        PreparedStatement statement = lock.prepareStatement("SELECT APPLOCK_MODE('public', ?, 'Session')");
+        statement.setString(1, lockName());
+        ResultSet resultSet = statement.executeQuery();
+        return resultSet.next() && "Exclusive".equals(resultSet.getString(1));
+    }
+
+    private String lockName() {
+        return "reminders:" + site;
+    }
+
+    // Schedules every upcoming reservation of the site, read once from the primary
+    private synchronized void load() throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT ID, Time FROM Reservations WHERE Site = ? AND Time >= ?");
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setString(1, site);
+            statement.setDate(2, Date.valueOf(LocalDate.now(zone)));
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                schedule(resultSet.getInt(1), resultSet.getDate(2));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Takes the site's committed events off ReminderEvents in the order they were written and applies them.
+    // READPAST skips the events of transactions still open, they are read once committed; a booking always
+    // commits before its cancellation is written, so the two are applied in order.
+    private synchronized void applyEvents() throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement("DELETE e " +
+                    "OUTPUT DELETED.ID, DELETED.AppointmentID, DELETED.Time, DELETED.Cancelled " +
+                    "FROM ReminderEvents e WHERE e.ID IN (SELECT TOP (" + EVENTS_PER_READ + ") ID " +
+                    "FROM ReminderEvents WITH (READPAST) WHERE Site = ? ORDER BY ID)");
+            int read;
+            do {
+                statement.setString(1, site);
+                ResultSet resultSet = statement.executeQuery();
+                // OUTPUT rows come in no particular order
+                TreeMap<Long, long[]> events = new TreeMap<>();
+                while (resultSet.next()) {
+                    events.put(resultSet.getLong(1), new long[]{resultSet.getInt(2),
+                            resultSet.getDate(3).toLocalDate().toEpochDay(), resultSet.getBoolean(4) ? 1 : 0});
+                }
+                for (long[] event : events.values()) {
+                    Date time = Date.valueOf(LocalDate.ofEpochDay(event[1]));
+                    if (event[2] == 1) {
+                        unschedule((int) event[0], time);
+                    } else {
+                        schedule((int) event[0], time);
+                    }
+                }
+                read = events.size();
+            } while (read == EVENTS_PER_READ);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private void schedule(int appointmentId, Date time) {
+        if (scheduled.get(appointmentId)) {
+            return;
+        }
+        scheduled.set(appointmentId);
+        long start = appointmentStartMinute(time);
+        long now = System.currentTimeMillis() / MINUTE_MILLIS;
+        for (int kind = DAY_BEFORE; kind <= HOUR_BEFORE; kind++) {
+            long due = start - LEAD_MINUTES[kind];
+            // a reminder whose moment has passed is no longer useful
+            if (due >= now) {
+                wheel.add(TimingWheel.entry(due, appointmentId << 1 | kind));
+            }
+        }
+    }
+
+    // Takes the reminders of a cancelled appointment off the wheel right away
+    private void unschedule(int appointmentId, Date time) {
+        if (!scheduled.get(appointmentId)) {
+            return;
+        }
+        scheduled.clear(appointmentId);
+        long start = appointmentStartMinute(time);
+        for (int kind = DAY_BEFORE; kind <= HOUR_BEFORE; kind++) {
+            if (wheel.remove(TimingWheel.entry(start - LEAD_MINUTES[kind], appointmentId << 1 | kind))) {
+                unscheduled++;
+            }
+        }
+    }
+
+    private synchronized void emitDue(long minute) throws IOException {
+        wheel.advanceTo(minute, entry -> {
+            int payload = TimingWheel.payload(entry);
+            int appointmentId = payload >>> 1;
+            int kind = payload & 1;
+            if (kind == HOUR_BEFORE) {
+                // the last reminder of the appointment, a later cancellation has nothing to take back
+                scheduled.clear(appointmentId);
+            }
+            long start = TimingWheel.dueMinute(entry) + LEAD_MINUTES[kind];
+            batch.append(KINDS[kind]).append(' ').append(appointmentId).append(' ')
+                    .append(Instant.ofEpochMilli(start * MINUTE_MILLIS).atZone(zone).toLocalDateTime())
+                    .append('\n');
+        });
+        if (batch.length() == 0) {
+            return;
+        }
+        // one append per tick, the consumer only ever sees whole lines
+        try (FileChannel channel = FileChannel.open(outbox, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        for (int i = 0; i < batch.length(); i++) {
+            if (batch.charAt(i) == '\n') {
+                written++;
+            }
+        }
+        batch.setLength(0);
+        System.out.println(getStats());
+    }
+
+    private long appointmentStartMinute(Date time) {
+        return time.toLocalDate().atTime(appointmentHour, 0).atZone(zone).toEpochSecond() / 60;
+    }
+}
@@ -0,0 +1,147 @@
+package scheduler.reminder;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+// Hierarchical timing wheel with a one minute tick and four levels of 64 slots (about 31 years).
+// Level L holds the entries whose due minute is in a later level-(L-1) revolution, they are moved
+// one level down when the wheel reaches their slot, so each entry is touched at most once per level.
+//
+// An entry is a single long: the due minute in the upper 32 bits and a 32-bit payload below,
+// and every slot is a growable long array, so a pending entry costs 8 bytes.
+public class TimingWheel {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+
+    private final long[][][] slots = new long[LEVELS][SLOTS][];
+    private final int[][] sizes = new int[LEVELS][SLOTS];
+    // entries that were already due when added, fired on the next advance
+    private long[] overdue = new long[16];
+    private int overdueSize = 0;
+
+    private long currentMinute;
+    private long pending = 0;
+
+    public TimingWheel(long currentMinute) {
+        this.currentMinute = currentMinute;
+    }
+
+    public static long entry(long dueMinute, int payload) {
+        return (dueMinute << 32) | (payload & 0xffffffffL);
+    }
+
+    public static long dueMinute(long entry) {
+        return entry >>> 32;
+    }
+
+    public static int payload(long entry) {
+        return (int) entry;
+    }
+
+    public long size() {
+        return pending;
+    }
+
+    public void add(long entry) {
+        pending++;
+        if (dueMinute(entry) <= currentMinute) {
+            overdue = append(overdue, overdueSize++, entry);
+        } else {
+            place(entry);
+        }
+    }
+
+    // Takes a pending entry off the wheel; false if it is not pending (fired already, or never added).
+    // An entry is always in the slot its due minute gives at its level, so only one slot per level is
+    // searched, at a cost of that slot's size.
+    public boolean remove(long entry) {
+        if (removeFrom(overdue, overdueSize, entry)) {
+            overdueSize--;
+            pending--;
+            return true;
+        }
+        long due = dueMinute(entry);
+        for (int level = 0; level < LEVELS; level++) {
+            int slot = (int) ((due >>> (SLOT_BITS * level)) & MASK);
+            long[] entries = slots[level][slot];
+            if (entries != null && removeFrom(entries, sizes[level][slot], entry)) {
+                sizes[level][slot]--;
+                pending--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Moves the wheel to the given minute and passes every entry due by then to fire
+    public void advanceTo(long minute, LongConsumer fire) {
+        for (int i = 0; i < overdueSize; i++) {
+            fire.accept(overdue[i]);
+        }
+        pending -= overdueSize;
+        overdueSize = 0;
+
+        while (currentMinute < minute) {
+            currentMinute++;
+            // bring down the higher levels whose slot starts now, top first so entries can fall through
+            for (int level = LEVELS - 1; level >= 1; level--) {
+                if ((currentMinute & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) ((currentMinute >>> (SLOT_BITS * level)) & MASK));
+                }
+            }
+            int slot = (int) (currentMinute & MASK);
+            long[] due = slots[0][slot];
+            int count = sizes[0][slot];
+            slots[0][slot] = null;
+            sizes[0][slot] = 0;
+            pending -= count;
+            for (int i = 0; i < count; i++) {
+                fire.accept(due[i]);
+            }
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        long[] entries = slots[level][slot];
+        int count = sizes[level][slot];
+        slots[level][slot] = null;
+        sizes[level][slot] = 0;
+        for (int i = 0; i < count; i++) {
+            place(entries[i]);
+        }
+    }
+
+    // Only called for entries due now or later, one due now lands in the level 0 slot that is about to fire
+    private void place(long entry) {
+        long due = dueMinute(entry);
+        // the lowest level whose revolution still reaches the due minute
+        int level = 0;
+        while (level < LEVELS - 1 && (due >>> (SLOT_BITS * level)) - (currentMinute >>> (SLOT_BITS * level)) >= SLOTS) {
+            level++;
+        }
+        int slot = (int) ((due >>> (SLOT_BITS * level)) & MASK);
+        long[] entries = slots[level][slot];
+        slots[level][slot] = append(entries == null ? new long[4] : entries, sizes[level][slot]++, entry);
+    }
+
+    // Removes the first occurrence of value from the first size elements, keeping the order of the rest
+    private static boolean removeFrom(long[] array, int size, long value) {
+        for (int i = 0; i < size; i++) {
+            if (array[i] == value) {
+                System.arraycopy(array, i + 1, array, i, size - i - 1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long[] append(long[] array, int index, long value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+}
@@ -0,0 +1,310 @@
+package scheduler.report;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.NameTable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Streams the reservations of one site added since the last export into a dictionary-encoded columnar file and a CSV.
+// The watermark is the reservations' row version, and an export only reads up to MIN_ACTIVE_ROWVERSION(), below
+// which every version is committed. A booking that took a lower ID or version but commits after an export is
+// therefore picked up by the next one instead of being skipped. Files are written under temporary names and
+// renamed once complete, so a failed export leaves nothing behind.
+//
+// Columnar layout (all integers big-endian):
+//   header     int magic "RSVC", int version
+//   row group  int rows, then one int column of that many values each for
+//              ID, Time (epoch day), vaccine code, caregiver code, patient code
+//   footer     three dictionaries (vaccines, caregivers, patients): int count, then per entry int length + UTF-8,
+//              int row groups, long rows
+//   trailer    long footer offset, int magic
+public class ReservationExporter {
+    private static final int MAGIC = 0x52535643;
+    private static final int VERSION = 1;
+    private static final int ROW_GROUP_SIZE = 65536;
+    private static final int FETCH_SIZE = 10000;
+    private static final String LAST_VERSION_FILE = "last_version";
+    // the ID watermark of exports made before row versions; the first export after the upgrade continues from it
+    private static final String LAST_ID_FILE = "last_id";
+
+    private final String site;
+    private final Path directory;
+
+    private final Dictionary vaccines = new Dictionary();
+    private final Dictionary caregivers = new Dictionary();
+    private final Dictionary patients = new Dictionary();
+
+    private final int[] ids = new int[ROW_GROUP_SIZE];
+    private final int[] days = new int[ROW_GROUP_SIZE];
+    private final int[] vaccineIds = new int[ROW_GROUP_SIZE];
+    private final int[] caregiverIds = new int[ROW_GROUP_SIZE];
+    private final int[] patientIds = new int[ROW_GROUP_SIZE];
+    private final int[] vaccineCodes = new int[ROW_GROUP_SIZE];
+    private final int[] caregiverCodes = new int[ROW_GROUP_SIZE];
+    private final int[] patientCodes = new int[ROW_GROUP_SIZE];
+    private int buffered = 0;
+    private int rowGroups = 0;
+    private long rows = 0;
+
+    public ReservationExporter(String site, Path directory) {
+        this.site = site;
+        this.directory = directory;
+    }
+
+    // Exports every reservation written since the last export, or all of them when full is set.
+    // Returns the number of rows written; an exporter is used for a single export.
+    public long export(boolean full) throws SQLException, IOException {
+        Files.createDirectories(directory);
+        // each shard versions its reservations on its own, so every site keeps its own watermark
+        String prefix = "reservations" + (site.equals(ConnectionManager.DEFAULT_SITE) ? "" : "-" + site);
+        Path lastVersionFile = directory.resolve(prefix + "." + LAST_VERSION_FILE);
+        Path lastIdFile = directory.resolve(prefix + "." + LAST_ID_FILE);
+        long lastVersion = 0;
+        int lastId = 0;
+        if (!full && Files.exists(lastVersionFile)) {
+            lastVersion = Long.parseLong(Files.readString(lastVersionFile).trim());
+        } else if (!full && Files.exists(lastIdFile)) {
+            lastId = Integer.parseInt(Files.readString(lastIdFile).trim());
+        }
+
+        String name = prefix + "-" + (lastVersion + 1) + "-" + System.currentTimeMillis();
+        Path columnar = directory.resolve(name + ".col");
+        Path csv = directory.resolve(name + ".csv");
+        Path columnarTmp = directory.resolve(name + ".col.tmp");
+        Path csvTmp = directory.resolve(name + ".csv.tmp");
+
+        // the primary, not the replica: MIN_ACTIVE_ROWVERSION() only knows the transactions open on the primary,
+        // and a lagging replica may not have applied every commit below it yet
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+        long exportedVersion = lastVersion;
+        try {
+            try (ChannelWriter col = new ChannelWriter(columnarTmp); ChannelWriter text = new ChannelWriter(csvTmp)) {
+                // the accounts may live in another database than the shard, so only the keys are streamed
+                // and the names are resolved through the intern tables once per row group
+                PreparedStatement statement = con.prepareStatement("SELECT ID, Time, CaregiverID, VaccineID, PatientID, " +
+                        "CAST(Version AS bigint) FROM Reservations WHERE Site = ? AND Version > CAST(? AS binary(8)) " +
+                        "AND Version < MIN_ACTIVE_ROWVERSION() AND ID > ? ORDER BY Version");
+                statement.setFetchSize(FETCH_SIZE);
+                statement.setString(1, site);
+                statement.setLong(2, lastVersion);
+                statement.setInt(3, lastId);
+                ResultSet resultSet = statement.executeQuery();
+
+                col.putInt(MAGIC);
+                col.putInt(VERSION);
+                text.putText("ID,Time,CaregiverName,VaccineName,PatientName\n");
+                while (resultSet.next()) {
+                    ids[buffered] = resultSet.getInt(1);
+                    days[buffered] = (int) resultSet.getDate(2).toLocalDate().toEpochDay();
+                    caregiverIds[buffered] = resultSet.getInt(3);
+                    vaccineIds[buffered] = resultSet.getInt(4);
+                    if (resultSet.wasNull()) {
+                        vaccineIds[buffered] = -1;
+                    }
+                    patientIds[buffered] = resultSet.getInt(5);
+                    if (resultSet.wasNull()) {
+                        patientIds[buffered] = -1;
+                    }
+                    exportedVersion = resultSet.getLong(6);
+                    if (++buffered == ROW_GROUP_SIZE) {
+                        writeRowGroup(col, text);
+                    }
+                }
+                if (buffered > 0) {
+                    writeRowGroup(col, text);
+                }
+
+                long footerOffset = col.position();
+                vaccines.write(col);
+                caregivers.write(col);
+                patients.write(col);
+                col.putInt(rowGroups);
+                col.putLong(rows);
+                col.putLong(footerOffset);
+                col.putInt(MAGIC);
+            } finally {
+                cm.closeConnection();
+            }
+        } catch (IOException | SQLException | RuntimeException e) {
+            Files.deleteIfExists(columnarTmp);
+            Files.deleteIfExists(csvTmp);
+            throw e;
+        }
+
+        if (rows == 0) {
+            Files.delete(columnarTmp);
+            Files.delete(csvTmp);
+            return 0;
+        }
+        Files.move(columnarTmp, columnar, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(csvTmp, csv, StandardCopyOption.ATOMIC_MOVE);
+        // only advance the watermark once both files are complete
+        Path tmp = directory.resolve(prefix + "." + LAST_VERSION_FILE + ".tmp");
+        Files.writeString(tmp, Long.toString(exportedVersion));
+        Files.move(tmp, lastVersionFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(lastIdFile);
+        return rows;
+    }
+
+    private void writeRowGroup(ChannelWriter col, ChannelWriter text) throws IOException, SQLException {
+        NameTable vaccineNames = NameTable.vaccines(site);
+        NameTable.CAREGIVERS.preload(present(caregiverIds));
+        vaccineNames.preload(present(vaccineIds));
+        NameTable.PATIENTS.preload(present(patientIds));
+        for (int i = 0; i < buffered; i++) {
+            String caregiver = NameTable.CAREGIVERS.nameOf(caregiverIds[i]);
+            String vaccine = vaccineIds[i] == -1 ? null : vaccineNames.nameOf(vaccineIds[i]);
+            String patient = patientIds[i] == -1 ? null : NameTable.PATIENTS.nameOf(patientIds[i]);
+            caregiverCodes[i] = caregivers.code(caregiver);
+            vaccineCodes[i] = vaccines.code(vaccine);
+            patientCodes[i] = patients.code(patient);
+            text.putText(ids[i] + "," + LocalDate.ofEpochDay(days[i]) + "," + csvField(caregiver) + ","
+                    + csvField(vaccine) + "," + csvField(patient) + "\n");
+        }
+
+        col.putInt(buffered);
+        col.putInts(ids, buffered);
+        col.putInts(days, buffered);
+        col.putInts(vaccineCodes, buffered);
+        col.putInts(caregiverCodes, buffered);
+        col.putInts(patientCodes, buffered);
+        rows += buffered;
+        rowGroups++;
+        buffered = 0;
+    }
+
+    // the distinct keys of the buffered rows, without the -1 that stands for NULL
+    private Set<Integer> present(int[] keys) {
+        Set<Integer> distinct = new HashSet<>();
+        for (int i = 0; i < buffered; i++) {
+            if (keys[i] != -1) {
+                distinct.add(keys[i]);
+            }
+        }
+        return distinct;
+    }
+
+    private static String csvField(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    // Interns the values of one column, each distinct value is stored once in the footer
+    private static class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int code(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        void write(ChannelWriter out) throws IOException {
+            out.putInt(values.size());
+            for (String value : values) {
+                byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+                out.putInt(bytes.length);
+                out.putBytes(bytes);
+            }
+        }
+    }
+
+    // Buffered writes straight to a FileChannel through one direct buffer
+    private static class ChannelWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        ChannelWriter(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        long position() throws IOException {
+            return channel.position() + buffer.position();
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putInts(int[] values, int count) throws IOException {
+            int offset = 0;
+            while (offset < count) {
+                ensure(4);
+                int n = Math.min(count - offset, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(values, offset, n);
+                buffer.position(buffer.position() + n * 4);
+                offset += n;
+            }
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int n = Math.min(bytes.length - offset, buffer.remaining());
+                buffer.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        void putText(String text) throws IOException {
+            putBytes(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package scheduler.report;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.NameTable;
+import scheduler.model.Availability;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Doses used per vaccine per day and caregiver utilization over a date range.
+// Reservations are streamed once and free availability, recurring rules included, is read once, split into
+// date partitions that are read in parallel from the site's read endpoint and aggregated into per-day int arrays.
+public class UsageReport {
+    private static final int FETCH_SIZE = 10000;
+    // keeps the per-vaccine day arrays small, ten years is plenty for an evening report
+    public static final int MAX_DAYS = 3660;
+
+    private final String site;
+    private final LocalDate from;
+    private final int days;
+
+    // vaccine ID -> doses used, indexed by day offset from the start of the range
+    private final Map<Integer, int[]> dosesByDay = new HashMap<>();
+    // booked and available dates, indexed by caregiver ID
+    private int[] bookedDays = new int[64];
+    private int[] availableDays = new int[64];
+
+    private UsageReport(String site, LocalDate from, int days) {
+        this.site = site;
+        this.from = from;
+        this.days = days;
+    }
+
+    public static UsageReport run(String site, LocalDate from, LocalDate to) throws SQLException {
+        int days = (int) (to.toEpochDay() - from.toEpochDay()) + 1;
+        if (days <= 0 || days > MAX_DAYS) {
+            throw new IllegalArgumentException("Date range must cover 1 to " + MAX_DAYS + " days");
+        }
+        UsageReport report = new UsageReport(site, from, days);
+
+        int partitions = Math.min(days, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+        try {
+            List<Future<UsageReport>> parts = new ArrayList<>();
+            for (int p = 0; p < partitions; p++) {
+                int first = (int) ((long) days * p / partitions);
+                int last = (int) ((long) days * (p + 1) / partitions) - 1;
+                parts.add(executor.submit(() -> scan(site, from, days, first, last)));
+            }
+            for (Future<UsageReport> part : parts) {
+                report.merge(part.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Report interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return report;
+    }
+
+    // Aggregates the days [first, last] of the range on its own connection
+    private static UsageReport scan(String site, LocalDate from, int days, int first, int last) throws SQLException {
+        UsageReport part = new UsageReport(site, from, days);
+        Date start = Date.valueOf(from.plusDays(first));
+        Date end = Date.valueOf(from.plusDays(last));
+        long fromDay = from.toEpochDay();
+
+        ConnectionManager cm = ConnectionManager.forSiteRead(site);
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement reservations = con.prepareStatement(
+                    "SELECT Time, VaccineID, CaregiverID FROM Reservations WHERE Site = ? AND Time BETWEEN ? AND ?");
+            reservations.setFetchSize(FETCH_SIZE);
+            reservations.setString(1, site);
+            reservations.setDate(2, start);
+            reservations.setDate(3, end);
+            ResultSet resultSet = reservations.executeQuery();
+            while (resultSet.next()) {
+                int day = (int) (resultSet.getDate(1).toLocalDate().toEpochDay() - fromDay);
+                part.dosesByDay.computeIfAbsent(resultSet.getInt(2), k -> new int[days])[day]++;
+                int caregiver = resultSet.getInt(3);
+                part.ensureCaregiver(caregiver);
+                part.bookedDays[caregiver]++;
+            }
+
+            // one-off availability and the dates recurring rules give, without the booked ones
+            for (List<Integer> caregivers : Availability.freeSlots(con, site, start, end).values()) {
+                for (int caregiver : caregivers) {
+                    part.ensureCaregiver(caregiver);
+                    part.availableDays[caregiver]++;
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return part;
+    }
+
+    private void ensureCaregiver(int caregiver) {
+        if (caregiver >= bookedDays.length) {
+            int length = Math.max(caregiver + 1, bookedDays.length * 2);
+            bookedDays = Arrays.copyOf(bookedDays, length);
+            availableDays = Arrays.copyOf(availableDays, length);
+        }
+    }
+
+    private void merge(UsageReport part) {
+        for (Map.Entry<Integer, int[]> entry : part.dosesByDay.entrySet()) {
+            int[] total = dosesByDay.computeIfAbsent(entry.getKey(), k -> new int[days]);
+            int[] counts = entry.getValue();
+            for (int day = 0; day < days; day++) {
+                total[day] += counts[day];
+            }
+        }
+        ensureCaregiver(part.bookedDays.length - 1);
+        for (int caregiver = 0; caregiver < part.bookedDays.length; caregiver++) {
+            bookedDays[caregiver] += part.bookedDays[caregiver];
+            availableDays[caregiver] += part.availableDays[caregiver];
+        }
+    }
+
+    public void print(PrintStream out) throws SQLException {
+        // names are only resolved for the output, sorted like the rest of the application's listings
+        Map<String, int[]> vaccines = new TreeMap<>();
+        NameTable vaccineNames = NameTable.vaccines(site);
+        vaccineNames.preload(dosesByDay.keySet());
+        // IDs whose name cannot be read are left out, a sorted map takes no null keys
+        for (Map.Entry<Integer, int[]> entry : dosesByDay.entrySet()) {
+            String name = vaccineNames.nameOf(entry.getKey());
+            if (name != null) {
+                vaccines.put(name, entry.getValue());
+            }
+        }
+        // one query for the caregivers' names as well, not one per caregiver
+        List<Integer> caregiverIds = new ArrayList<>();
+        for (int caregiver = 0; caregiver < bookedDays.length; caregiver++) {
+            if (bookedDays[caregiver] + availableDays[caregiver] > 0) {
+                caregiverIds.add(caregiver);
+            }
+        }
+        NameTable.CAREGIVERS.preload(caregiverIds);
+        Map<String, Integer> caregivers = new TreeMap<>();
+        for (int caregiver : caregiverIds) {
+            String name = NameTable.CAREGIVERS.nameOf(caregiver);
+            if (name != null) {
+                caregivers.put(name, caregiver);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Doses used per vaccine per day\n");
+        for (Map.Entry<String, int[]> entry : vaccines.entrySet()) {
+            int[] counts = entry.getValue();
+            for (int day = 0; day < days; day++) {
+                if (counts[day] > 0) {
+                    sb.append(from.plusDays(day)).append(' ').append(entry.getKey()).append(' ')
+                            .append(counts[day]).append('\n');
+                }
+            }
+        }
+        sb.append("Caregiver utilization (booked / (available + booked) dates)\n");
+        for (Map.Entry<String, Integer> entry : caregivers.entrySet()) {
+            int booked = bookedDays[entry.getValue()];
+            int total = booked + availableDays[entry.getValue()];
+            sb.append(entry.getKey()).append(' ').append(booked).append('/').append(total)
+                    .append(String.format(" %.1f%%", booked * 100.0 / total)).append('\n');
+        }
+        out.print(sb);
+    }
+}
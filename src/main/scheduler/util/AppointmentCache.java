@@ -0,0 +1,155 @@
+package scheduler.util;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// The appointment listings of recent users, so repeated show_appointments calls are answered from memory.
+// Entries are keyed by role, site and username and hold the listed lines in appointment ID order.
+// Bookings and cancellations made by this process update the entries of both people involved; the ones
+// made by other processes show up once an entry's time to live runs out. The least recently used entries
+// are evicted once the cache is full.
+public class AppointmentCache {
+    public static final String PATIENT = "patient";
+    public static final String CAREGIVER = "caregiver";
+
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    // access order, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // "<site> <appointment ID>" -> keys of the entries listing it, so a cancellation needs no name lookups
+    private final Map<String, Set<String>> listedIn = new HashMap<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evicted = 0;
+
+    public AppointmentCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    // Limits taken from the environment, by default listings last 30 seconds and at most 1000 are kept
+    public static AppointmentCache fromEnvironment() {
+        String ttl = System.getenv("AppointmentCacheTtlSeconds");
+        String max = System.getenv("AppointmentCacheSize");
+        return new AppointmentCache((ttl == null ? 30 : Long.parseLong(ttl)) * 1000,
+                max == null ? 1000 : Integer.parseInt(max));
+    }
+
+    // A line of a listing, the other person is the caregiver for patients and the patient for caregivers
+    public static String line(int appointmentId, String vaccineName, Date time, String otherPerson) {
+        return appointmentId + " " + vaccineName + " " + time + " " + otherPerson;
+    }
+
+    // The cached listing, or null if it has to be read
+    public synchronized List<String> get(String role, String site, String username) {
+        String key = key(role, site, username);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            drop(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new ArrayList<>(entry.lines.values());
+    }
+
+    // Caches a listing just read, lines by appointment ID
+    public synchronized void put(String role, String site, String username, Map<Integer, String> lines) {
+        String key = key(role, site, username);
+        drop(key);
+        Entry entry = new Entry(System.currentTimeMillis() + ttlMillis);
+        entries.put(key, entry);
+        for (Map.Entry<Integer, String> line : lines.entrySet()) {
+            list(key, entry, site, line.getKey(), line.getValue());
+        }
+        Iterator<Map.Entry<String, Entry>> oldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries) {
+            Map.Entry<String, Entry> eldest = oldest.next();
+            unindex(eldest.getKey(), eldest.getValue());
+            oldest.remove();
+            evicted++;
+        }
+    }
+
+    // Adds a new booking to the cached listings of the patient and the caregiver
+    public synchronized void booked(String site, int appointmentId, String vaccineName, Date time,
+                                    String patientName, String caregiverName) {
+        String patientKey = key(PATIENT, site, patientName);
+        Entry patient = entries.get(patientKey);
+        if (patient != null) {
+            list(patientKey, patient, site, appointmentId, line(appointmentId, vaccineName, time, caregiverName));
+        }
+        String caregiverKey = key(CAREGIVER, site, caregiverName);
+        Entry caregiver = entries.get(caregiverKey);
+        if (caregiver != null) {
+            list(caregiverKey, caregiver, site, appointmentId, line(appointmentId, vaccineName, time, patientName));
+        }
+    }
+
+    // Removes a cancelled appointment from every cached listing
+    public synchronized void cancelled(String site, int appointmentId) {
+        Set<String> keys = listedIn.remove(site + " " + appointmentId);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            entries.get(key).lines.remove(appointmentId);
+        }
+    }
+
+    public synchronized String getStats() {
+        long lookups = hits + misses;
+        return "appointment cache: " + entries.size() + " listings, " + hits + " hits, " + misses + " misses" +
+                (lookups == 0 ? "" : " (" + (100 * hits / lookups) + "% hit rate)") + ", " + evicted + " evicted";
+    }
+
+    private void list(String key, Entry entry, String site, int appointmentId, String line) {
+        entry.lines.put(appointmentId, line);
+        listedIn.computeIfAbsent(site + " " + appointmentId, k -> new HashSet<>()).add(key);
+    }
+
+    private void drop(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            unindex(key, entry);
+        }
+    }
+
+    private void unindex(String key, Entry entry) {
+        String site = key.substring(key.indexOf(' ') + 1, key.lastIndexOf(' '));
+        for (int appointmentId : entry.lines.keySet()) {
+            Set<String> keys = listedIn.get(site + " " + appointmentId);
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                listedIn.remove(site + " " + appointmentId);
+            }
+        }
+    }
+
+    // usernames and site names have no spaces, the command line splits on them
+    private static String key(String role, String site, String username) {
+        return role + " " + site + " " + username;
+    }
+
+    private static class Entry {
+        private final long expiresAt;
+        private final TreeMap<Integer, String> lines = new TreeMap<>();
+
+        Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package scheduler.util;
+
+import java.nio.charset.StandardCharsets;
+
+// Compact set membership for strings: mightContain() never returns false for an added value,
+// and returns true for a value that was never added with a small, bounded probability.
+public class BloomFilter {
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private int bitsSet = 0;
+
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        int n = Math.max(1, expectedInsertions);
+        // optimal sizing: m = -n ln p / (ln 2)^2 and k = m / n ln 2
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        m = Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.bits = new long[(int) ((m + 63) / 64)];
+        this.numBits = bits.length * 64;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    public void add(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            int bit = index(h1 + i * h2);
+            long mask = 1L << bit;
+            if ((bits[bit >>> 6] & mask) == 0) {
+                bits[bit >>> 6] |= mask;
+                bitsSet++;
+            }
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            int bit = index(h1 + i * h2);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Chance that a value that was never added is reported as present, given the current fill
+    public double expectedFalsePositiveRate() {
+        return Math.pow((double) bitsSet / numBits, numHashes);
+    }
+
+    public long memoryBytes() {
+        return bits.length * 8L;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    private int index(int combinedHash) {
+        // flip negative hashes so every bit index is in range
+        return (combinedHash < 0 ? ~combinedHash : combinedHash) % numBits;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, the two halves seed the double hashing above
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        // final avalanche so the upper half is as well mixed as the lower
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
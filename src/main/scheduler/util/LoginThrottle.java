@@ -0,0 +1,149 @@
+package scheduler.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Admission control in front of the login getters: a global token bucket bounds the total rate of
+// PBKDF2 hashes and database lookups, and a bucket per account stops a burst against one account.
+// Rejections happen before any hashing or database work, which is what keeps them cheap.
+// The buckets only cover the process they live in; an attacker spreading attempts over many processes is
+// limited by FailedLogins, which counts wrong passwords per account in the database.
+//
+// This process is also the source of its attempts: once it has had maxSourceFailures wrong passwords for an
+// account within the failure window, it refuses that account locally and stops reporting failures for it.
+// Kept below FailedLogins' limit, that means one source cannot lock an account out for everyone else.
+public class LoginThrottle {
+    private final TokenBucket global;
+    private final double accountCapacity;
+    private final double accountRefillPerSecond;
+    private final int maxAccounts;
+    private final int maxSourceFailures;
+    private final long failureWindowMillis;
+
+    // access-ordered, so the least recently seen account is dropped first
+    private final LinkedHashMap<String, Account> accounts = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long admitted = 0;
+    private long shedByAccount = 0;
+    private long shedGlobally = 0;
+    private long shedBySource = 0;
+
+    public LoginThrottle(double globalCapacity, double globalRefillPerSecond,
+                         double accountCapacity, double accountRefillPerSecond, int maxAccounts,
+                         int maxSourceFailures, long failureWindowMillis) {
+        this.global = new TokenBucket(globalCapacity, globalRefillPerSecond);
+        this.accountCapacity = accountCapacity;
+        this.accountRefillPerSecond = accountRefillPerSecond;
+        this.maxAccounts = maxAccounts;
+        this.maxSourceFailures = maxSourceFailures;
+        this.failureWindowMillis = failureWindowMillis;
+    }
+
+    // Limits taken from the environment, the defaults allow 20 logins per second overall
+    // and a burst of 5 then one every 10 seconds per account; this process reports at most 3 wrong passwords
+    // per account within the 15 minute failure window
+    public static LoginThrottle fromEnvironment() {
+        return new LoginThrottle(
+                envOrDefault("LoginBurst", 40), envOrDefault("LoginRatePerSecond", 20),
+                envOrDefault("AccountLoginBurst", 5), envOrDefault("AccountLoginRatePerSecond", 0.1),
+                (int) envOrDefault("ThrottledAccounts", 10000), (int) envOrDefault("SourceFailedLogins", 3),
+                (long) envOrDefault("FailedLoginWindowSeconds", 900) * 1000);
+    }
+
+    public synchronized boolean admit(String role, String username) {
+        String key = role + ":" + username;
+        Account account = accounts.get(key);
+        if (account == null) {
+            account = new Account(new TokenBucket(accountCapacity, accountRefillPerSecond));
+            accounts.put(key, account);
+            evict();
+        }
+        if (account.failuresIn(System.currentTimeMillis()) >= maxSourceFailures) {
+            shedBySource++;
+            return false;
+        }
+        if (!account.bucket.tryAcquire()) {
+            shedByAccount++;
+            return false;
+        }
+        if (!global.tryAcquire()) {
+            // the account did not get to try, so it keeps its token
+            account.bucket.release();
+            shedGlobally++;
+            return false;
+        }
+        admitted++;
+        return true;
+    }
+
+    // Counts a wrong password from this process, after admit; true while the failure should still be reported
+    // to FailedLogins, false once this process has reached its own limit for the account
+    public synchronized boolean recordFailure(String role, String username) {
+        Account account = accounts.get(role + ":" + username);
+        if (account == null) {
+            // evicted meanwhile, a new account starts over
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (account.failuresIn(now) == 0) {
+            account.windowStart = now;
+            account.failures = 0;
+        }
+        return ++account.failures <= maxSourceFailures;
+    }
+
+    // A correct password clears this process's failures for the account
+    public synchronized void clearFailures(String role, String username) {
+        Account account = accounts.get(role + ":" + username);
+        if (account != null) {
+            account.failures = 0;
+        }
+    }
+
+    private void evict() {
+        if (accounts.size() <= maxAccounts) {
+            return;
+        }
+        // a full bucket without failures carries no state, drop those first and only then the least recently used
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Account>> it = accounts.entrySet().iterator();
+        while (it.hasNext() && accounts.size() > maxAccounts) {
+            Account account = it.next().getValue();
+            if (account.bucket.isFull() && account.failuresIn(now) == 0) {
+                it.remove();
+            }
+        }
+        it = accounts.entrySet().iterator();
+        while (it.hasNext() && accounts.size() > maxAccounts) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized String getStats() {
+        return "logins: " + admitted + " admitted, " + shedByAccount + " shed by account limit, "
+                + shedGlobally + " shed by global limit, " + shedBySource + " shed after failures from this process, "
+                + accounts.size() + " accounts tracked";
+    }
+
+    private static double envOrDefault(String name, double defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private class Account {
+        private final TokenBucket bucket;
+        private int failures = 0;
+        private long windowStart = 0;
+
+        Account(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+
+        // wrong passwords from this process in the failure window that is running at now
+        int failuresIn(long now) {
+            return now - windowStart < failureWindowMillis ? failures : 0;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package scheduler.util;
+
+// Classic token bucket: holds up to capacity tokens and refills continuously at refillPerSecond.
+public class TokenBucket {
+    private final double capacity;
+    private final double refillPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double capacity, double refillPerSecond) {
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSecond / 1e9;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    // Gives back a token taken by tryAcquire() for a request that was rejected further on
+    public synchronized void release() {
+        tokens = Math.min(capacity, tokens + 1);
+    }
+
+    // true once the bucket has refilled completely, it then behaves exactly like a new one
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerNano);
+        lastRefill = now;
+    }
+}
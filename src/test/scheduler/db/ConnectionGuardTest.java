@@ -0,0 +1,36 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransactionRollbackException;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionGuardTest {
+
+    @Test
+    void connectionExceptionsAreFatal() {
+        assertTrue(ConnectionGuard.isFatal(new SQLException("link failure", "08S01")));
+        assertTrue(ConnectionGuard.isFatal(new SQLException("connection closed", "08003")));
+        assertTrue(ConnectionGuard.isFatal(new SQLRecoverableException("reconnect")));
+        assertTrue(ConnectionGuard.isFatal(new SQLNonTransientConnectionException("refused")));
+    }
+
+    @Test
+    void statementErrorsLeaveTheConnectionUsable() {
+        assertFalse(ConnectionGuard.isFatal(new SQLException("duplicate key", "23000", 2627)));
+        assertFalse(ConnectionGuard.isFatal(new SQLTransactionRollbackException("deadlock", "40001", 1205)));
+        assertFalse(ConnectionGuard.isFatal(new SQLException("no state")));
+    }
+
+    @Test
+    void looksAtChainedExceptions() {
+        SQLException batch = new SQLException("batch failed", "23000");
+        batch.setNextException(new SQLException("link failure", "08S01"));
+        assertTrue(ConnectionGuard.isFatal(batch));
+    }
+}
@@ -0,0 +1,76 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryTest {
+
+    @Test
+    void serializationFailuresAndLostConnectionsAreTransient() {
+        assertTrue(Retry.isTransient(new SQLException("serialization failure", "40001")));
+        assertTrue(Retry.isTransient(new SQLException("link failure", "08S01")));
+        assertTrue(Retry.isTransient(new SQLTransientConnectionException("timeout")));
+        assertTrue(Retry.isTransient(new SQLRecoverableException("reconnect")));
+    }
+
+    @Test
+    void deadlocksAndAzureThrottlingAreTransient() {
+        assertTrue(Retry.isTransient(new SQLException("deadlock victim", "40001", 1205)));
+        assertTrue(Retry.isTransient(new SQLException("database unavailable", "S0001", 40613)));
+        assertTrue(Retry.isTransient(new SQLException("service busy", "S0001", 40501)));
+        assertTrue(Retry.isTransient(new SQLException("not enough resources", "S0001", 49919)));
+    }
+
+    @Test
+    void constraintAndSyntaxErrorsAreNot() {
+        assertFalse(Retry.isTransient(new SQLException("duplicate key", "23000", 2627)));
+        assertFalse(Retry.isTransient(new SQLException("invalid column", "S0001", 207)));
+        assertFalse(Retry.isTransient(new SQLException("no state")));
+    }
+
+    @Test
+    void findsTheDriverErrorBehindTheModelClassWrapper() {
+        SQLException driver = new SQLException("deadlock victim", "40001", 1205);
+        // the model classes rethrow with their own message and no state of their own
+        SQLException wrapped = new SQLException("Could not reserve: " + driver.getMessage(), null, 0, driver);
+        assertTrue(Retry.isTransient(wrapped));
+
+        SQLException batch = new SQLException("batch failed", "23000", 2627);
+        batch.setNextException(new SQLException("service busy", "S0001", 40501));
+        assertTrue(Retry.isTransient(batch));
+    }
+
+    @Test
+    void rerunsTransientFailuresUntilTheWorkSucceeds() throws SQLException {
+        int[] attempts = {0};
+        String result = Retry.run(() -> {
+            if (++attempts[0] < 3) {
+                throw new SQLException("deadlock victim", "40001", 1205);
+            }
+            return "done";
+        });
+        assertEquals("done", result);
+        assertEquals(3, attempts[0]);
+    }
+
+    @Test
+    void permanentFailuresAreThrownAtOnce() {
+        int[] attempts = {0};
+        SQLException duplicate = new SQLException("duplicate key", "23000", 2627);
+        SQLException thrown = assertThrows(SQLException.class, () -> Retry.run(() -> {
+            attempts[0]++;
+            throw duplicate;
+        }));
+        assertSame(duplicate, thrown);
+        assertEquals(1, attempts[0]);
+    }
+}
@@ -0,0 +1,39 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class StatementLogTest {
+
+    @Test
+    void stringsAndBytesKeepOnlyTheirLength() {
+        assertEquals("'***'(5)", StatementLog.mask("alice"));
+        assertEquals("'***'(0)", StatementLog.mask(""));
+        assertEquals("<16 bytes>", StatementLog.mask(new byte[16]));
+    }
+
+    @Test
+    void numbersFlagsAndDatesAreLoggedAsTheyAre() {
+        assertEquals("42", StatementLog.mask(42));
+        assertEquals("-7", StatementLog.mask(-7L));
+        assertEquals("1.50", StatementLog.mask(new BigDecimal("1.50")));
+        assertEquals("true", StatementLog.mask(Boolean.TRUE));
+        assertEquals("2024-03-04", StatementLog.mask(Date.valueOf("2024-03-04")));
+        assertEquals("NULL", StatementLog.mask(null));
+    }
+
+    @Test
+    void otherValuesShowOnlyTheirType() {
+        UUID key = UUID.randomUUID();
+        String masked = StatementLog.mask(key);
+        assertEquals("<UUID>", masked);
+        assertFalse(masked.contains(key.toString()));
+        assertEquals("<char[]>", StatementLog.mask("secret".toCharArray()));
+    }
+}
@@ -0,0 +1,29 @@
+package scheduler.hold;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class HoldTableTest {
+
+    @Test
+    void leavesOutHeldCaregiversKeepingTheOrder() {
+        int[] caregivers = {4, 9, 2, 7};
+        assertArrayEquals(new int[]{4, 2}, HoldTable.withoutHeld(caregivers, Set.of(9, 7, 100)));
+    }
+
+    @Test
+    void keepsTheCaregiversWhenNothingIsHeld() {
+        int[] caregivers = {4, 9};
+        assertSame(caregivers, HoldTable.withoutHeld(caregivers, null));
+        assertSame(caregivers, HoldTable.withoutHeld(caregivers, Set.of()));
+    }
+
+    @Test
+    void leavesNothingWhenEveryCaregiverIsHeld() {
+        assertArrayEquals(new int[0], HoldTable.withoutHeld(new int[]{4, 9}, Set.of(4, 9)));
+    }
+}
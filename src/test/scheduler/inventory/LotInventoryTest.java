@@ -0,0 +1,116 @@
+package scheduler.inventory;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LotInventoryTest {
+    private static final int VACCINE = 1;
+    private static final LocalDate TODAY = LocalDate.now();
+    private static final AtomicInteger sites = new AtomicInteger();
+
+    // A site of its own for each test, stocked with lots as if they had been read
+    private static LotInventory inventory() {
+        return LotInventory.forSite("lot-test-" + sites.incrementAndGet());
+    }
+
+    // A connection whose lot queries find nothing, counting them
+    private static Connection emptyShard(AtomicInteger queries) {
+        ResultSet empty = (ResultSet) Proxy.newProxyInstance(LotInventoryTest.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, (proxy, method, args) -> false);
+        PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(
+                LotInventoryTest.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> method.getName().equals("executeQuery") ? empty : null);
+        return (Connection) Proxy.newProxyInstance(LotInventoryTest.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("prepareStatement")) {
+                        queries.incrementAndGet();
+                        return statement;
+                    }
+                    return null;
+                });
+    }
+
+    @Test
+    void takesFromTheEarliestExpiringLotFirst() throws SQLException {
+        LotInventory lots = inventory();
+        lots.put(10, VACCINE, TODAY.plusDays(90), 1);
+        lots.put(11, VACCINE, TODAY.plusDays(30), 2);
+        lots.put(12, VACCINE, TODAY.plusDays(60), 1);
+        assertEquals(11, lots.take(null, VACCINE, TODAY));
+        assertEquals(11, lots.take(null, VACCINE, TODAY));
+        assertEquals(12, lots.take(null, VACCINE, TODAY));
+        assertEquals(10, lots.take(null, VACCINE, TODAY));
+    }
+
+    @Test
+    void skipsLotsThatExpireBeforeTheAppointment() throws SQLException {
+        LotInventory lots = inventory();
+        lots.put(10, VACCINE, TODAY.plusDays(5), 3);
+        lots.put(11, VACCINE, TODAY.plusDays(40), 3);
+        assertEquals(11, lots.take(null, VACCINE, TODAY.plusDays(20)));
+        // a lot expiring on the appointment day is still good that day
+        assertEquals(10, lots.take(null, VACCINE, TODAY.plusDays(5)));
+    }
+
+    @Test
+    void lotsWithTheSameExpiryGoInIdOrder() throws SQLException {
+        LotInventory lots = inventory();
+        lots.put(21, VACCINE, TODAY.plusDays(30), 1);
+        lots.put(20, VACCINE, TODAY.plusDays(30), 1);
+        assertEquals(20, lots.take(null, VACCINE, TODAY));
+        assertEquals(21, lots.take(null, VACCINE, TODAY));
+    }
+
+    @Test
+    void aGivenBackDoseIsTakenAgainBeforeLaterLots() throws SQLException {
+        LotInventory lots = inventory();
+        lots.put(10, VACCINE, TODAY.plusDays(30), 1);
+        lots.put(11, VACCINE, TODAY.plusDays(60), 1);
+        assertEquals(10, lots.take(null, VACCINE, TODAY));
+        lots.giveBack(VACCINE, 10);
+        assertEquals(10, lots.take(null, VACCINE, TODAY));
+        assertEquals(11, lots.take(null, VACCINE, TODAY));
+    }
+
+    @Test
+    void anExpiredLotDoesNotTakeItsDoseBack() throws SQLException {
+        AtomicInteger queries = new AtomicInteger();
+        LotInventory lots = inventory();
+        lots.put(10, VACCINE, TODAY.minusDays(1), 1);
+        lots.put(11, VACCINE, TODAY.plusDays(30), 1);
+        assertEquals(10, lots.take(null, VACCINE, TODAY.minusDays(2)));
+        lots.giveBack(VACCINE, 10);
+        assertEquals(11, lots.take(null, VACCINE, TODAY));
+        assertEquals(-1, lots.take(emptyShard(queries), VACCINE, TODAY.minusDays(2)));
+    }
+
+    @Test
+    void aMissReadsTheVaccineOnceBeforeGivingUp() throws SQLException {
+        AtomicInteger queries = new AtomicInteger();
+        LotInventory lots = inventory();
+        lots.put(10, VACCINE, TODAY.plusDays(30), 1);
+        assertEquals(10, lots.take(null, VACCINE, TODAY));
+        assertEquals(-1, lots.take(emptyShard(queries), VACCINE, TODAY));
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    void aStaleVaccineIsReadOnlyOnce() throws SQLException {
+        AtomicInteger queries = new AtomicInteger();
+        LotInventory lots = inventory();
+        lots.put(10, VACCINE, TODAY.plusDays(30), 1);
+        lots.invalidate(VACCINE);
+        // the re-read found nothing, so reading again on the miss would not help
+        assertEquals(-1, lots.take(emptyShard(queries), VACCINE, TODAY));
+        assertEquals(1, queries.get());
+    }
+}
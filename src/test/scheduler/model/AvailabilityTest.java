@@ -0,0 +1,64 @@
+package scheduler.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AvailabilityTest {
+    // 2024-01-01 was a Monday
+    private static final LocalDate MONDAY = LocalDate.of(2024, 1, 1);
+    private static final int WEEKDAYS = 0b0011111;
+
+    @Test
+    void weekdayBitsMatchTheQueryThatCountsFrom1900() {
+        // RULE_PROVIDES takes the bit from the days since 1900-01-01, which must be Monday's bit 0
+        assertEquals(DayOfWeek.MONDAY, LocalDate.of(1900, 1, 1).getDayOfWeek());
+        assertEquals(1, Availability.weekdayBit(DayOfWeek.MONDAY));
+        assertEquals(64, Availability.weekdayBit(DayOfWeek.SUNDAY));
+    }
+
+    @Test
+    void expandsOnlyTheRuleWeekdays() {
+        Map<LocalDate, Set<Integer>> byRule = new HashMap<>();
+        Availability.expand(byRule, 7, MONDAY, MONDAY.plusDays(13), WEEKDAYS);
+        assertEquals(10, byRule.size());
+        for (LocalDate day : byRule.keySet()) {
+            assertTrue(day.getDayOfWeek().getValue() <= 5, day + " is a weekend day");
+            assertEquals(Set.of(7), byRule.get(day));
+        }
+    }
+
+    @Test
+    void includesBothEndsOfTheRange() {
+        Map<LocalDate, Set<Integer>> byRule = new HashMap<>();
+        int sunday = Availability.weekdayBit(DayOfWeek.SUNDAY);
+        Availability.expand(byRule, 7, MONDAY.plusDays(6), MONDAY.plusDays(13), sunday);
+        assertEquals(Set.of(MONDAY.plusDays(6), MONDAY.plusDays(13)), byRule.keySet());
+    }
+
+    @Test
+    void expandsNothingForAnEmptyRangeOrNoWeekdays() {
+        Map<LocalDate, Set<Integer>> byRule = new HashMap<>();
+        Availability.expand(byRule, 7, MONDAY.plusDays(1), MONDAY, WEEKDAYS);
+        Availability.expand(byRule, 7, MONDAY, MONDAY.plusDays(30), 0);
+        assertTrue(byRule.isEmpty());
+    }
+
+    @Test
+    void rulesOfSeveralCaregiversShareDatesInExpansionOrder() {
+        Map<LocalDate, Set<Integer>> byRule = new HashMap<>();
+        Availability.expand(byRule, 9, MONDAY, MONDAY.plusDays(6), WEEKDAYS);
+        Availability.expand(byRule, 3, MONDAY.plusDays(2), MONDAY.plusDays(2), 0b1111111);
+        Availability.expand(byRule, 9, MONDAY, MONDAY.plusDays(6), WEEKDAYS);
+        assertEquals(List.of(9, 3), List.copyOf(byRule.get(MONDAY.plusDays(2))));
+        assertEquals(Set.of(9), byRule.get(MONDAY));
+    }
+}
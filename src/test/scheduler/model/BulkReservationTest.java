@@ -0,0 +1,46 @@
+package scheduler.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BulkReservationTest {
+    private static final Date DAY = Date.valueOf("2024-03-04");
+
+    @Test
+    void takesTheFirstCaregiverNotTakenYet() {
+        int[] caregivers = {4, 9, 2};
+        boolean[] taken = {true, false, false};
+        assertEquals(1, BulkReservation.nextCaregiver(caregivers, taken, DAY, 1, Map.of()));
+    }
+
+    @Test
+    void skipsCaregiversHeldByAnotherPatient() {
+        int[] caregivers = {4, 9, 2};
+        Map<String, Integer> holderOf = Map.of(DAY + " 4", 77, DAY + " 9", 78);
+        assertEquals(2, BulkReservation.nextCaregiver(caregivers, new boolean[3], DAY, 1, holderOf));
+    }
+
+    @Test
+    void givesTheHolderTheirHeldCaregiver() {
+        int[] caregivers = {4, 9};
+        Map<String, Integer> holderOf = Map.of(DAY + " 4", 77);
+        assertEquals(0, BulkReservation.nextCaregiver(caregivers, new boolean[2], DAY, 77, holderOf));
+    }
+
+    @Test
+    void holdsOnOtherDatesDoNotCount() {
+        Map<String, Integer> holderOf = Map.of(Date.valueOf("2024-03-05") + " 4", 77);
+        assertEquals(0, BulkReservation.nextCaregiver(new int[]{4}, new boolean[1], DAY, 1, holderOf));
+    }
+
+    @Test
+    void noCaregiverWhenAllAreTakenOrHeld() {
+        int[] caregivers = {4, 9};
+        Map<String, Integer> holderOf = Map.of(DAY + " 9", 78);
+        assertEquals(-1, BulkReservation.nextCaregiver(caregivers, new boolean[]{true, false}, DAY, 1, holderOf));
+    }
+}
@@ -0,0 +1,70 @@
+package scheduler.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SeriesReservationTest {
+    private static final LocalDate FIRST = LocalDate.of(2024, 3, 4);
+
+    // A calendar with a free caregiver on the given day offsets from FIRST
+    private static TreeMap<LocalDate, int[]> calendar(int... offsets) {
+        TreeMap<LocalDate, int[]> calendar = new TreeMap<>();
+        for (int offset : offsets) {
+            calendar.put(FIRST.plusDays(offset), new int[]{1});
+        }
+        return calendar;
+    }
+
+    private static TreeMap<LocalDate, int[]> everyDay(int days) {
+        TreeMap<LocalDate, int[]> calendar = new TreeMap<>();
+        for (int offset = 0; offset < days; offset++) {
+            calendar.put(FIRST.plusDays(offset), new int[]{1});
+        }
+        return calendar;
+    }
+
+    @Test
+    void takesTheMinimumIntervalWhenEveryDayIsFree() {
+        assertArrayEquals(new int[]{0, 21, 42}, SeriesReservation.plan(everyDay(60), FIRST, 3, 21, 28));
+    }
+
+    @Test
+    void singleDoseNeedsOnlyTheFirstDay() {
+        assertArrayEquals(new int[]{0}, SeriesReservation.plan(calendar(0), FIRST, 1, 21, 28));
+        assertNull(SeriesReservation.plan(calendar(1), FIRST, 1, 21, 28));
+    }
+
+    @Test
+    void noPlanWhenTheFirstDayIsNotFree() {
+        assertNull(SeriesReservation.plan(calendar(1, 22, 43), FIRST, 3, 21, 28));
+    }
+
+    @Test
+    void waitsForTheFirstFreeDayInTheWindow() {
+        assertArrayEquals(new int[]{0, 25}, SeriesReservation.plan(calendar(0, 19, 20, 25, 27), FIRST, 2, 21, 28));
+    }
+
+    @Test
+    void noPlanWhenTheWindowHasNoFreeDay() {
+        // 20 is too early and 29 too late for a 21 to 28 day interval
+        assertNull(SeriesReservation.plan(calendar(0, 20, 29), FIRST, 2, 21, 28));
+    }
+
+    @Test
+    void skipsAnEarlierDayThatLeavesNoRoomForTheNextDose() {
+        // dose 2 on day 2 would need dose 3 on day 4 or 5, neither is free; day 3 leads to day 6
+        assertArrayEquals(new int[]{0, 3, 6}, SeriesReservation.plan(calendar(0, 2, 3, 6), FIRST, 3, 2, 3));
+    }
+
+    @Test
+    void ignoresDaysBeforeTheFirstDoseAndBeyondTheLastWindow() {
+        TreeMap<LocalDate, int[]> calendar = calendar(0, 7, 500);
+        calendar.put(FIRST.minusDays(3), new int[]{1});
+        assertArrayEquals(new int[]{0, 7}, SeriesReservation.plan(calendar, FIRST, 2, 7, 7));
+    }
+}
@@ -0,0 +1,124 @@
+package scheduler.reminder;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+    private static final long START = 29_000_000;
+
+    @Test
+    void entryKeepsDueMinuteAndPayload() {
+        long entry = TimingWheel.entry(START + 5, -7);
+        assertEquals(START + 5, TimingWheel.dueMinute(entry));
+        assertEquals(-7, TimingWheel.payload(entry));
+    }
+
+    @Test
+    void firesAtTheDueMinuteAndNotBefore() {
+        TimingWheel wheel = new TimingWheel(START);
+        wheel.add(TimingWheel.entry(START + 10, 1));
+        List<Long> fired = new ArrayList<>();
+
+        wheel.advanceTo(START + 9, fired::add);
+        assertTrue(fired.isEmpty());
+        assertEquals(1, wheel.size());
+
+        wheel.advanceTo(START + 10, fired::add);
+        assertEquals(List.of(TimingWheel.entry(START + 10, 1)), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void entriesOnHigherLevelsCascadeDownToTheirMinute() {
+        TimingWheel wheel = new TimingWheel(START);
+        // one entry for each level: under 64 minutes, 64^2, 64^3 and beyond
+        long[] dues = {START + 63, START + 64 * 5 + 3, START + 64 * 64 * 3 + 17, START + 64 * 64 * 64 + 1};
+        for (int i = 0; i < dues.length; i++) {
+            wheel.add(TimingWheel.entry(dues[i], i));
+        }
+        Map<Integer, Long> firedAt = new HashMap<>();
+        for (long minute = START + 1; minute <= dues[dues.length - 1]; minute++) {
+            long now = minute;
+            wheel.advanceTo(minute, entry -> firedAt.put(TimingWheel.payload(entry), now));
+        }
+        for (int i = 0; i < dues.length; i++) {
+            assertEquals(Long.valueOf(dues[i]), firedAt.get(i), "entry " + i);
+        }
+    }
+
+    @Test
+    void overdueEntriesFireOnTheNextAdvance() {
+        TimingWheel wheel = new TimingWheel(START);
+        wheel.add(TimingWheel.entry(START - 30, 1));
+        wheel.add(TimingWheel.entry(START, 2));
+        assertEquals(2, wheel.size());
+
+        List<Integer> fired = new ArrayList<>();
+        wheel.advanceTo(START, entry -> fired.add(TimingWheel.payload(entry)));
+        assertEquals(List.of(1, 2), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void removedEntriesNeverFire() {
+        TimingWheel wheel = new TimingWheel(START);
+        long overdue = TimingWheel.entry(START - 1, 1);
+        long soon = TimingWheel.entry(START + 5, 2);
+        long later = TimingWheel.entry(START + 64 * 64 + 9, 3);
+        long kept = TimingWheel.entry(START + 64 * 64 + 9, 4);
+        wheel.add(overdue);
+        wheel.add(soon);
+        wheel.add(later);
+        wheel.add(kept);
+
+        assertTrue(wheel.remove(overdue));
+        assertTrue(wheel.remove(soon));
+        // cascaded down a level before it is removed
+        wheel.advanceTo(START + 64 * 64 + 1, entry -> { });
+        assertTrue(wheel.remove(later));
+        assertFalse(wheel.remove(later));
+        assertFalse(wheel.remove(TimingWheel.entry(START + 100, 5)));
+        assertEquals(1, wheel.size());
+
+        List<Integer> fired = new ArrayList<>();
+        wheel.advanceTo(START + 64 * 64 * 2, entry -> fired.add(TimingWheel.payload(entry)));
+        assertEquals(List.of(4), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void randomEntriesFireOnceWithinTheAdvanceThatReachesThem() {
+        Random random = new Random(42);
+        TimingWheel wheel = new TimingWheel(START);
+        Map<Integer, Long> dues = new HashMap<>();
+        for (int payload = 0; payload < 20000; payload++) {
+            long due = START + 1 + random.nextInt(300_000);
+            dues.put(payload, due);
+            wheel.add(TimingWheel.entry(due, payload));
+        }
+
+        Map<Integer, Long> fired = new HashMap<>();
+        long reached = START;
+        while (reached < START + 300_001) {
+            long previous = reached;
+            reached += 1 + random.nextInt(500);
+            long target = reached;
+            wheel.advanceTo(target, entry -> {
+                long due = TimingWheel.dueMinute(entry);
+                assertTrue(due > previous && due <= target, due + " fired advancing to " + target);
+                assertEquals(null, fired.put(TimingWheel.payload(entry), due), "fired twice");
+            });
+        }
+        assertEquals(dues, fired);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,520 @@
+package scheduler.stress;
+
+import scheduler.db.ConnectionManager;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.Vaccine;
+import scheduler.util.Util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs many Scheduler sessions at once against the configured database and checks the booking invariants:
+// no caregiver booked twice on a date, no dose count below zero, every uploaded slot either free or booked,
+// every delivered dose either in stock or in a reservation, and exactly the reported bookings in the table.
+//
+// Each session is a Scheduler process of its own, as in production, driven by a script drawn from the seed.
+// The same seed replays the same scripts; the interleaving is up to the scheduler and the database.
+// The accounts, vaccines and dates of a run are new, so runs can share a scratch database, but nothing is
+// removed afterwards. Exits with status 1 if an invariant was violated.
+//
+// It lives with the tests and is not shipped; run it with the main and test classes on the classpath,
+// the sessions it starts inherit it:
+//
+// java scheduler.stress.StressHarness [<seed> [<sessions> [<commands per session>]]]
+public class StressHarness {
+    private static final String PASSWORD = "Stress#1234";
+    private static final int CAREGIVERS = 6;
+    private static final int VACCINES = 2;
+    private static final int LOTS = 3;
+    private static final int DAYS = 4;
+    private static final int INITIAL_DOSES = 8;
+    // every fourth session is a caregiver restocking and uploading, the others are patients booking
+    private static final int CAREGIVER_EVERY = 4;
+    private static final long MONITOR_MILLIS = 200;
+
+    // sent after every command, Scheduler answers it with a line that ends the command's output
+    private static final String SYNC = "sync";
+    private static final String SYNC_REPLY = "Invalid operation name!";
+    private static final Pattern BOOKED = Pattern.compile("Appointment ID (\\d+)");
+
+    private final long seed;
+    private final int sessions;
+    private final int commands;
+    private final String site = initialSite();
+    private final String tag;
+    private final LocalDate firstDay;
+
+    private final List<Integer> caregiverIds = new ArrayList<>();
+    private final List<String> patientNames = new ArrayList<>();
+    private final List<Integer> patientIds = new ArrayList<>();
+    private final List<String> vaccineNames = new ArrayList<>();
+
+    // what the sessions were told happened, checked against the tables afterwards
+    private final Set<String> uploaded = new HashSet<>();
+    private final Map<String, Integer> delivered = new HashMap<>();
+    private final Set<Integer> booked = new HashSet<>();
+    private final Set<Integer> cancelled = new HashSet<>();
+    private final Map<String, Integer> outcomes = new TreeMap<>();
+    private final Set<String> violations = new LinkedHashSet<>();
+
+    public StressHarness(long seed, int sessions, int commands) {
+        this.seed = seed;
+        this.sessions = sessions;
+        this.commands = commands;
+        long run = System.currentTimeMillis();
+        this.tag = "st" + Long.toHexString(seed) + "x" + Long.toHexString(run);
+        // a date range of its own, so the sessions only meet the caregivers of this run
+        this.firstDay = LocalDate.of(2100, 1, 1).plusDays(Math.floorMod(run / 1000, 30000));
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : new Random().nextLong();
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+        int commands = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        if (sessions < 2 || commands < 1) {
+            System.out.println("A run needs at least 2 sessions and 1 command per session");
+            return;
+        }
+
+        StressHarness harness = new StressHarness(seed, sessions, commands);
+        System.out.println("Stress run " + harness.tag + " at site " + harness.site + ", seed " + seed);
+        harness.setUp();
+        harness.run();
+        harness.check();
+
+        System.out.println("outcomes: " + harness.outcomes);
+        if (harness.violations.isEmpty()) {
+            System.out.println("All invariants hold");
+            return;
+        }
+        for (String violation : harness.violations) {
+            System.out.println("VIOLATION " + violation);
+        }
+        System.out.println(harness.violations.size() + " violations, replay with seed " + seed);
+        System.exit(1);
+    }
+
+    // the site a Scheduler process starts at, which is where the sessions work
+    private static String initialSite() {
+        String site = System.getenv("Site");
+        return site == null || !ConnectionManager.isSite(site) ? ConnectionManager.DEFAULT_SITE : site;
+    }
+
+    // Accounts, the first lots and availability for half of the caregiver days
+    private void setUp() throws SQLException {
+        Random random = new Random(seed);
+        for (int i = 0; i < CAREGIVERS; i++) {
+            byte[] salt = Util.generateSalt();
+            Caregiver caregiver = new Caregiver.CaregiverBuilder(tag + "c" + i, salt, Util.generateHash(PASSWORD, salt))
+                    .build();
+            caregiver.saveToDB();
+            caregiverIds.add(caregiver.getId());
+            for (int day = 0; day < DAYS; day++) {
+                if (random.nextBoolean()) {
+                    caregiver.uploadAvailability(dateOf(day), site);
+                    uploaded.add(slot(caregiver.getId(), dateOf(day)));
+                }
+            }
+        }
+        for (int i = 0; i < sessions; i++) {
+            if (i % CAREGIVER_EVERY != 0) {
+                byte[] salt = Util.generateSalt();
+                Patient patient = new Patient.PatientBuilder(tag + "p" + i, salt, Util.generateHash(PASSWORD, salt))
+                        .build();
+                patient.saveToDB();
+                patientNames.add(patient.getUsername());
+                patientIds.add(patient.getId());
+            }
+        }
+        List<Vaccine.Delivery> deliveries = new ArrayList<>();
+        for (int i = 0; i < VACCINES; i++) {
+            vaccineNames.add(tag + "v" + i);
+            deliveries.add(new Vaccine.Delivery(tag + "v" + i, lotName(0), expiryOf(0), INITIAL_DOSES));
+            delivered.merge(tag + "v" + i + " " + lotName(0), INITIAL_DOSES, Integer::sum);
+        }
+        Vaccine.addDoses(site, deliveries);
+    }
+
+    // Starts every session at once and waits for all of them, sampling the invariants meanwhile
+    private void run() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        int patient = 0;
+        for (int i = 0; i < sessions; i++) {
+            Random random = new Random(seed * 31 + i);
+            Session session = i % CAREGIVER_EVERY == 0
+                    ? new Session("login_caregiver " + tag + "c" + (i / CAREGIVER_EVERY % CAREGIVERS) + " " + PASSWORD,
+                    caregiverScript(random), caregiverIds.get(i / CAREGIVER_EVERY % CAREGIVERS))
+                    : new Session("login_patient " + patientNames.get(patient++) + " " + PASSWORD,
+                    patientScript(random), -1);
+            Thread thread = new Thread(session, "session-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        Thread monitor = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    checkStock();
+                    checkDoubleBookings();
+                    Thread.sleep(MONITOR_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SQLException e) {
+                violation("monitor could not read the tables: " + e.getMessage());
+            }
+        }, "invariant-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        monitor.interrupt();
+        monitor.join();
+    }
+
+    private List<String> caregiverScript(Random random) {
+        List<String> script = new ArrayList<>();
+        for (int i = 0; i < commands; i++) {
+            if (random.nextBoolean()) {
+                script.add("upload_availability " + dateOf(random.nextInt(DAYS)));
+            } else {
+                int lot = random.nextInt(LOTS);
+                script.add("add_doses " + vaccineNames.get(random.nextInt(VACCINES)) + " " + (1 + random.nextInt(3)) +
+                        " " + lotName(lot) + " " + expiryOf(lot));
+            }
+        }
+        return script;
+    }
+
+    // "cancel #<n>" cancels the session's n-th booking so far, modulo the number of bookings
+    private List<String> patientScript(Random random) {
+        List<String> script = new ArrayList<>();
+        for (int i = 0; i < commands; i++) {
+            if (random.nextInt(10) < 7) {
+                script.add("reserve " + dateOf(random.nextInt(DAYS)) + " " + vaccineNames.get(random.nextInt(VACCINES)));
+            } else {
+                script.add("cancel #" + random.nextInt(1000));
+            }
+        }
+        return script;
+    }
+
+    // Checks the tables against what the sessions were told
+    private void check() throws SQLException {
+        checkStock();
+        checkDoubleBookings();
+
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+        try {
+            // every uploaded slot is still free or booked, and no other slot appeared
+            Set<String> slots = new HashSet<>();
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT CaregiverID, Time FROM Availabilities WHERE Site = ? AND CaregiverID IN " +
+                            placeholders(caregiverIds.size()) +
+                            " UNION SELECT CaregiverID, Time FROM Reservations WHERE Site = ? AND CaregiverID IN " +
+                            placeholders(caregiverIds.size()));
+            int index = bind(statement, 1, site, caregiverIds);
+            bind(statement, index, site, caregiverIds);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                slots.add(slot(resultSet.getInt(1), resultSet.getDate(2)));
+            }
+            for (String slot : uploaded) {
+                if (!slots.contains(slot)) {
+                    violation("slot " + slot + " was uploaded but is neither free nor booked");
+                }
+            }
+            for (String slot : slots) {
+                if (!uploaded.contains(slot)) {
+                    violation("slot " + slot + " is free or booked but was never uploaded");
+                }
+            }
+
+            // exactly the bookings reported and not cancelled are in the table
+            Set<Integer> expected = new HashSet<>(booked);
+            expected.removeAll(cancelled);
+            Set<Integer> actual = new HashSet<>();
+            statement = con.prepareStatement("SELECT ID FROM Reservations WHERE Site = ? AND PatientID IN " +
+                    placeholders(patientIds.size()));
+            bind(statement, 1, site, patientIds);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                actual.add(resultSet.getInt(1));
+            }
+            for (int id : expected) {
+                if (!actual.contains(id)) {
+                    violation("appointment " + id + " was booked and not cancelled but is missing");
+                }
+            }
+            for (int id : actual) {
+                if (!expected.contains(id)) {
+                    violation("appointment " + id + " exists but was never reported or was cancelled");
+                }
+            }
+
+            // every delivered dose is in its lot or in a reservation, and each total matches its lots
+            statement = con.prepareStatement(
+                    "SELECT v.Name, l.Lot, l.Doses, v.Doses, " +
+                            "(SELECT COUNT(*) FROM Reservations r WHERE r.LotID = l.ID) AS Booked " +
+                            "FROM Vaccines v JOIN VaccineLots l ON l.VaccineID = v.ID " +
+                            "WHERE v.Site = ? AND v.Name LIKE ?");
+            statement.setString(1, site);
+            statement.setString(2, tag + "v%");
+            resultSet = statement.executeQuery();
+            Map<String, Integer> lotTotals = new HashMap<>();
+            Map<String, Integer> vaccineTotals = new HashMap<>();
+            Set<String> seen = new HashSet<>();
+            while (resultSet.next()) {
+                String lot = resultSet.getString("Name") + " " + resultSet.getString("Lot");
+                int inStock = resultSet.getInt(3);
+                int inReservations = resultSet.getInt("Booked");
+                int expectedDoses = delivered.getOrDefault(lot, 0);
+                if (inStock + inReservations != expectedDoses) {
+                    violation("lot " + lot + " holds " + inStock + " doses and " + inReservations +
+                            " reservations, " + expectedDoses + " were delivered");
+                }
+                seen.add(lot);
+                lotTotals.merge(resultSet.getString("Name"), inStock, Integer::sum);
+                vaccineTotals.put(resultSet.getString("Name"), resultSet.getInt(4));
+            }
+            for (String lot : delivered.keySet()) {
+                if (!seen.contains(lot)) {
+                    violation("lot " + lot + " was delivered but is missing");
+                }
+            }
+            for (Map.Entry<String, Integer> entry : vaccineTotals.entrySet()) {
+                if (!entry.getValue().equals(lotTotals.get(entry.getKey()))) {
+                    violation("vaccine " + entry.getKey() + " has " + entry.getValue() + " doses, its lots " +
+                            lotTotals.get(entry.getKey()));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private void checkStock() throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT v.Name, v.Doses, l.Lot, l.Doses FROM Vaccines v " +
+                            "LEFT JOIN VaccineLots l ON l.VaccineID = v.ID " +
+                            "WHERE v.Site = ? AND v.Name LIKE ? AND (v.Doses < 0 OR l.Doses < 0)");
+            statement.setString(1, site);
+            statement.setString(2, tag + "v%");
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                violation("vaccine " + resultSet.getString(1) + " has " + resultSet.getInt(2) + " doses, lot " +
+                        resultSet.getString(3) + " " + resultSet.getInt(4));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private void checkDoubleBookings() throws SQLException {
+        ConnectionManager cm = ConnectionManager.forSite(site);
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT CaregiverID, Time, COUNT(*) FROM Reservations WHERE Site = ? AND CaregiverID IN " +
+                            placeholders(caregiverIds.size()) + " GROUP BY CaregiverID, Time HAVING COUNT(*) > 1");
+            bind(statement, 1, site, caregiverIds);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                violation("caregiver " + resultSet.getInt(1) + " is booked " + resultSet.getInt(3) + " times on " +
+                        resultSet.getDate(2));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private synchronized void violation(String violation) {
+        violations.add(violation);
+    }
+
+    private synchronized void record(String outcome) {
+        outcomes.merge(outcome, 1, Integer::sum);
+    }
+
+    private Date dateOf(int day) {
+        return Date.valueOf(firstDay.plusDays(day));
+    }
+
+    private String lotName(int lot) {
+        return tag + "l" + lot;
+    }
+
+    // lots expire a day apart, so the allocation order between them matters
+    private Date expiryOf(int lot) {
+        return Date.valueOf(firstDay.plusYears(1).plusDays(lot));
+    }
+
+    private static String slot(int caregiverId, Date time) {
+        return caregiverId + " " + time;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.append(")").toString();
+    }
+
+    private static int bind(PreparedStatement statement, int index, String site, List<Integer> ids)
+            throws SQLException {
+        statement.setString(index++, site);
+        for (int id : ids) {
+            statement.setInt(index++, id);
+        }
+        return index;
+    }
+
+    // One Scheduler process running a script
+    private class Session implements Runnable {
+        private final String login;
+        private final List<String> script;
+        private final int caregiverId;
+        private final List<Integer> bookings = new ArrayList<>();
+
+        private Process process;
+        private PrintWriter in;
+        private BufferedReader out;
+
+        Session(String login, List<String> script, int caregiverId) {
+            this.login = login;
+            this.script = script;
+            this.caregiverId = caregiverId;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "scheduler.Scheduler",
+                        "--no-warmup")
+                        .redirectErrorStream(true)
+                        .start();
+                in = new PrintWriter(process.getOutputStream(), true);
+                out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                send(null);
+                if (!send(login).contains("Logged in")) {
+                    violation(Thread.currentThread().getName() + " could not log in");
+                    return;
+                }
+                for (String command : script) {
+                    execute(command);
+                }
+                in.println("quit");
+                process.waitFor();
+            } catch (IOException e) {
+                violation(Thread.currentThread().getName() + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (process != null) {
+                    process.destroy();
+                }
+            }
+        }
+
+        private void execute(String command) throws IOException {
+            if (command.startsWith("cancel #")) {
+                if (bookings.isEmpty()) {
+                    return;
+                }
+                int id = bookings.get(Integer.parseInt(command.substring(8)) % bookings.size());
+                String output = send("cancel " + id);
+                if (output.contains("Appointment successfully cancelled")) {
+                    bookings.remove(Integer.valueOf(id));
+                    synchronized (StressHarness.this) {
+                        cancelled.add(id);
+                    }
+                    record("cancelled");
+                } else {
+                    record(output.contains("Exception") ? "cancel failed" : "cancel refused");
+                }
+                return;
+            }
+
+            String output = send(command);
+            String[] tokens = command.split(" ");
+            if (command.startsWith("reserve ")) {
+                Matcher matcher = BOOKED.matcher(output);
+                if (matcher.find()) {
+                    int id = Integer.parseInt(matcher.group(1));
+                    bookings.add(id);
+                    synchronized (StressHarness.this) {
+                        booked.add(id);
+                    }
+                    record("booked");
+                } else {
+                    record(output.contains("Exception") ? "reserve failed" : "reserve refused");
+                }
+            } else if (command.startsWith("upload_availability ")) {
+                if (output.contains("Availability uploaded!")) {
+                    synchronized (StressHarness.this) {
+                        uploaded.add(slot(caregiverId, Date.valueOf(tokens[1])));
+                    }
+                    record("uploaded");
+                } else {
+                    // uploading a date twice is refused by the primary key
+                    record("upload refused");
+                }
+            } else if (command.startsWith("add_doses ")) {
+                if (output.contains("Doses updated!")) {
+                    synchronized (StressHarness.this) {
+                        delivered.merge(tokens[1] + " " + tokens[3], Integer.parseInt(tokens[2]), Integer::sum);
+                    }
+                    record("restocked");
+                } else {
+                    record("restock failed");
+                }
+            }
+        }
+
+        // The output of the command, or of the start-up banner when command is null
+        private String send(String command) throws IOException {
+            if (command != null) {
+                in.println(command);
+            }
+            in.println(SYNC);
+            StringBuilder output = new StringBuilder();
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (line.contains(SYNC_REPLY)) {
+                    return output.toString();
+                }
+                output.append(line).append('\n');
+            }
+            throw new IOException("session ended during " + command);
+        }
+    }
+}
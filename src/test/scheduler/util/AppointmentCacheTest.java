@@ -0,0 +1,95 @@
+package scheduler.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AppointmentCacheTest {
+    private static final long HOUR_MILLIS = 3_600_000;
+    private static final Date DAY = Date.valueOf("2024-03-04");
+
+    private static String line(int appointmentId, String otherPerson) {
+        return AppointmentCache.line(appointmentId, "pfizer", DAY, otherPerson);
+    }
+
+    @Test
+    void missesUntilAListingIsPut() {
+        AppointmentCache cache = new AppointmentCache(HOUR_MILLIS, 10);
+        assertNull(cache.get(AppointmentCache.PATIENT, "north", "alice"));
+        cache.put(AppointmentCache.PATIENT, "north", "alice", Map.of(2, line(2, "carol"), 1, line(1, "dave")));
+        assertEquals(List.of(line(1, "dave"), line(2, "carol")), cache.get(AppointmentCache.PATIENT, "north", "alice"));
+        // the same name at another site or in the other role is another listing
+        assertNull(cache.get(AppointmentCache.PATIENT, "south", "alice"));
+        assertNull(cache.get(AppointmentCache.CAREGIVER, "north", "alice"));
+        assertTrue(cache.getStats().contains("1 hits, 3 misses"), cache.getStats());
+    }
+
+    @Test
+    void bookingsReachTheListingsOfBothPeople() {
+        AppointmentCache cache = new AppointmentCache(HOUR_MILLIS, 10);
+        cache.put(AppointmentCache.PATIENT, "north", "alice", Map.of());
+        cache.put(AppointmentCache.CAREGIVER, "north", "carol", Map.of(1, line(1, "bob")));
+        cache.booked("north", 5, "pfizer", DAY, "alice", "carol");
+        assertEquals(List.of(line(5, "carol")), cache.get(AppointmentCache.PATIENT, "north", "alice"));
+        assertEquals(List.of(line(1, "bob"), line(5, "alice")), cache.get(AppointmentCache.CAREGIVER, "north", "carol"));
+        // a booking of someone without a cached listing caches nothing
+        cache.booked("north", 6, "pfizer", DAY, "erin", "frank");
+        assertNull(cache.get(AppointmentCache.PATIENT, "north", "erin"));
+    }
+
+    @Test
+    void cancellationsLeaveEveryListingThroughTheIndex() {
+        AppointmentCache cache = new AppointmentCache(HOUR_MILLIS, 10);
+        cache.put(AppointmentCache.PATIENT, "north", "alice", Map.of(5, line(5, "carol"), 6, line(6, "carol")));
+        cache.put(AppointmentCache.CAREGIVER, "north", "carol", Map.of(5, line(5, "alice"), 6, line(6, "alice")));
+        // appointment IDs are per shard, 5 at south is another appointment
+        cache.put(AppointmentCache.PATIENT, "south", "alice", Map.of(5, line(5, "dave")));
+
+        cache.cancelled("north", 5);
+        assertEquals(List.of(line(6, "carol")), cache.get(AppointmentCache.PATIENT, "north", "alice"));
+        assertEquals(List.of(line(6, "alice")), cache.get(AppointmentCache.CAREGIVER, "north", "carol"));
+        assertEquals(List.of(line(5, "dave")), cache.get(AppointmentCache.PATIENT, "south", "alice"));
+        cache.cancelled("north", 5);
+    }
+
+    @Test
+    void replacedListingsAreUnindexed() {
+        AppointmentCache cache = new AppointmentCache(HOUR_MILLIS, 10);
+        cache.put(AppointmentCache.PATIENT, "north", "alice", Map.of(5, line(5, "carol")));
+        cache.put(AppointmentCache.PATIENT, "north", "alice", Map.of(7, line(7, "carol")));
+        cache.cancelled("north", 5);
+        assertEquals(List.of(line(7, "carol")), cache.get(AppointmentCache.PATIENT, "north", "alice"));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedListing() {
+        AppointmentCache cache = new AppointmentCache(HOUR_MILLIS, 2);
+        cache.put(AppointmentCache.PATIENT, "north", "alice", Map.of(1, line(1, "carol")));
+        cache.put(AppointmentCache.PATIENT, "north", "bob", Map.of(2, line(2, "carol")));
+        // reading alice makes bob the least recently used
+        cache.get(AppointmentCache.PATIENT, "north", "alice");
+        cache.put(AppointmentCache.PATIENT, "north", "erin", Map.of(3, line(3, "carol")));
+
+        assertNull(cache.get(AppointmentCache.PATIENT, "north", "bob"));
+        assertEquals(List.of(line(1, "carol")), cache.get(AppointmentCache.PATIENT, "north", "alice"));
+        assertEquals(List.of(line(3, "carol")), cache.get(AppointmentCache.PATIENT, "north", "erin"));
+        assertTrue(cache.getStats().endsWith("1 evicted"), cache.getStats());
+        // the evicted listing left the index with it
+        cache.cancelled("north", 2);
+    }
+
+    @Test
+    void expiredListingsAreReadAgain() throws InterruptedException {
+        AppointmentCache cache = new AppointmentCache(20, 10);
+        cache.put(AppointmentCache.PATIENT, "north", "alice", Map.of(1, line(1, "carol")));
+        Thread.sleep(50);
+        assertNull(cache.get(AppointmentCache.PATIENT, "north", "alice"));
+        cache.cancelled("north", 1);
+    }
+}
@@ -0,0 +1,63 @@
+package scheduler.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+
+    @Test
+    void emptyFilterContainsNothing() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        assertFalse(filter.mightContain("alice"));
+        assertFalse(filter.mightContain(""));
+        assertEquals(0.0, filter.expectedFalsePositiveRate());
+    }
+
+    @Test
+    void addedValuesAreAlwaysFound() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("user" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("user" + i), "user" + i);
+        }
+    }
+
+    @Test
+    void falsePositivesStayNearTheConfiguredRate() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("user" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        // 1% expected, three times that leaves room for an unlucky hash without hiding a broken one
+        assertTrue(falsePositives < 3000, falsePositives + " false positives");
+        assertTrue(filter.expectedFalsePositiveRate() < 0.02, "" + filter.expectedFalsePositiveRate());
+    }
+
+    @Test
+    void sizingFollowsTheFormula() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        // m = -n ln p / (ln 2)^2 is about 95851 bits, k = m / n ln 2 is about 7
+        assertEquals(7, filter.getNumHashes());
+        assertTrue(filter.memoryBytes() >= 95851 / 8 && filter.memoryBytes() <= 95851 / 8 + 8,
+                "" + filter.memoryBytes());
+    }
+
+    @Test
+    void nonAsciiValuesAreHashedByTheirBytes() {
+        BloomFilter filter = new BloomFilter(100, 0.001);
+        filter.add("zo\u00eb");
+        assertTrue(filter.mightContain("zo\u00eb"));
+        assertFalse(filter.mightContain("zoe"));
+    }
+}
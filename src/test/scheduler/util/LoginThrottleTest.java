@@ -0,0 +1,92 @@
+package scheduler.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoginThrottleTest {
+    private static final long HOUR_MILLIS = 3_600_000;
+
+    private static LoginThrottle throttle(double accountBurst, int maxAccounts, int maxSourceFailures) {
+        return new LoginThrottle(1000, 1000, accountBurst, 1e-9, maxAccounts, maxSourceFailures, HOUR_MILLIS);
+    }
+
+    @Test
+    void shedsAnAccountOnceItsBurstIsSpent() {
+        LoginThrottle throttle = throttle(2, 100, 10);
+        assertTrue(throttle.admit("patient", "alice"));
+        assertTrue(throttle.admit("patient", "alice"));
+        assertFalse(throttle.admit("patient", "alice"));
+        // other accounts and the same name in the other role have buckets of their own
+        assertTrue(throttle.admit("patient", "bob"));
+        assertTrue(throttle.admit("caregiver", "alice"));
+    }
+
+    @Test
+    void globalLimitLeavesTheAccountItsToken() {
+        LoginThrottle throttle = new LoginThrottle(1, 1e-9, 1, 1e-9, 100, 10, HOUR_MILLIS);
+        assertTrue(throttle.admit("patient", "alice"));
+        assertFalse(throttle.admit("patient", "bob"));
+        assertTrue(throttle.getStats().contains("1 shed by global limit"), throttle.getStats());
+    }
+
+    @Test
+    void reportsFailuresUpToTheSourceLimitAndThenRefusesTheAccount() {
+        LoginThrottle throttle = throttle(100, 100, 2);
+        assertTrue(throttle.admit("patient", "alice"));
+        assertTrue(throttle.recordFailure("patient", "alice"));
+        assertTrue(throttle.admit("patient", "alice"));
+        assertTrue(throttle.recordFailure("patient", "alice"));
+        assertFalse(throttle.admit("patient", "alice"));
+        assertFalse(throttle.recordFailure("patient", "alice"));
+        assertTrue(throttle.admit("patient", "bob"));
+    }
+
+    @Test
+    void correctPasswordClearsTheSourceFailures() {
+        LoginThrottle throttle = throttle(100, 100, 1);
+        assertTrue(throttle.admit("patient", "alice"));
+        assertTrue(throttle.recordFailure("patient", "alice"));
+        assertFalse(throttle.admit("patient", "alice"));
+        throttle.clearFailures("patient", "alice");
+        assertTrue(throttle.admit("patient", "alice"));
+    }
+
+    @Test
+    void failuresRunOutWithTheirWindow() throws InterruptedException {
+        LoginThrottle throttle = new LoginThrottle(1000, 1000, 100, 1e-9, 100, 1, 20);
+        assertTrue(throttle.admit("patient", "alice"));
+        throttle.recordFailure("patient", "alice");
+        assertFalse(throttle.admit("patient", "alice"));
+        Thread.sleep(50);
+        assertTrue(throttle.admit("patient", "alice"));
+    }
+
+    @Test
+    void evictsIdleAccountsBeforeBusyOnes() {
+        // alice has spent a token, so her bucket is not full and she carries state
+        LoginThrottle throttle = new LoginThrottle(1000, 1000, 2, 1e-9, 2, 10, HOUR_MILLIS);
+        assertTrue(throttle.admit("patient", "alice"));
+        assertTrue(throttle.admit("patient", "alice"));
+        assertFalse(throttle.admit("patient", "alice"));
+        // bob's and carol's buckets refill instantly, so they are idle right after admit
+        LoginThrottle idle = new LoginThrottle(1000, 1000, 2, 1e12, 2, 10, HOUR_MILLIS);
+        assertTrue(idle.admit("patient", "bob"));
+        assertTrue(idle.admit("patient", "carol"));
+        assertTrue(idle.admit("patient", "dave"));
+        assertTrue(idle.getStats().endsWith("2 accounts tracked"), idle.getStats());
+    }
+
+    @Test
+    void evictionKeepsAnAccountWithFailures() {
+        LoginThrottle throttle = new LoginThrottle(1000, 1000, 100, 1e12, 2, 1, HOUR_MILLIS);
+        assertTrue(throttle.admit("patient", "alice"));
+        throttle.recordFailure("patient", "alice");
+        // bob is idle and least recently used after alice is seen again, he goes first
+        assertTrue(throttle.admit("patient", "bob"));
+        assertFalse(throttle.admit("patient", "alice"));
+        assertTrue(throttle.admit("patient", "carol"));
+        assertFalse(throttle.admit("patient", "alice"));
+    }
+}
@@ -0,0 +1,45 @@
+package scheduler.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+    // slow enough that no token comes back while a test runs
+    private static final double NO_REFILL = 1e-9;
+
+    @Test
+    void startsFullAndAllowsABurstOfCapacity() {
+        TokenBucket bucket = new TokenBucket(3, NO_REFILL);
+        assertTrue(bucket.isFull());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        assertFalse(bucket.isFull());
+    }
+
+    @Test
+    void releaseGivesBackATokenButNeverExceedsCapacity() {
+        TokenBucket bucket = new TokenBucket(2, NO_REFILL);
+        bucket.release();
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+
+        bucket.release();
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1, 1000);
+        assertTrue(bucket.tryAcquire());
+        // a token every millisecond, so 50 ms refills the bucket many times over
+        Thread.sleep(50);
+        assertTrue(bucket.isFull());
+        assertTrue(bucket.tryAcquire());
+    }
+}